@@ -1,7 +1,7 @@
 local lib = require('CoronaLibrary'):new{name = 'plugin.ageRange', publisherId = 'com.solar2d'}
 
 
-local functions = {'init', 'requestAgeRange', 'requestSignificantUpdatePermission', 'requestCommunicationPermission', 'startListeningForCommunicationResponses'}
+local functions = {'init', 'requestAgeRange', 'requestSignificantUpdatePermission', 'requestCommunicationPermission', 'startListeningForCommunicationResponses', 'invalidateCache', 'cancelRequest', 'getStats', 'stopListeningForCommunicationResponses', 'requestCommunicationPermissions'}
 
 for i = 1, #functions do
     local f = functions[i]
@@ -11,4 +11,26 @@ for i = 1, #functions do
     end
 end
 
+-- Synchronous getters return what the device API returns when there is no data, without printing
+function lib.getCachedAgeRange()
+    return nil
+end
+
+-- No feature policy can be satisfied without an age range result
+function lib.canUse()
+    return false
+end
+
+function lib.canUseMany(featureIds)
+    local results = {}
+    if type(featureIds) == 'table' then
+        for i = 1, #featureIds do
+            if type(featureIds[i]) == 'string' then
+                results[featureIds[i]] = false
+            end
+        end
+    end
+    return results
+end
+
 return lib
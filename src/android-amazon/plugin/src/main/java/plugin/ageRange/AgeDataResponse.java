@@ -0,0 +1,130 @@
+//
+//  AgeDataResponse.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Objects;
+
+/**
+ * The fields of a GetUserAgeData response that the plugin reports.
+ * <p>
+ * Responses are read in a single streaming pass that skips every other field, and the most
+ * recent parse is memoized by its raw text, since the provider returns the same response
+ * until the user's status changes. Instances are immutable and may be shared between threads.
+ */
+final class AgeDataResponse {
+    final String responseStatus;
+    final String userStatus;
+    final int ageLower;
+    final int ageUpper;
+    final String userId;
+    final String mostRecentApprovalDate;
+
+    /** The most recently parsed response, or null before the first parse. */
+    private static volatile AgeDataResponse sLastParsed;
+
+    /** The raw text this response was parsed from, used as the memoization key. */
+    private final String fRaw;
+
+    private AgeDataResponse(String raw, String responseStatus, String userStatus, int ageLower, int ageUpper,
+                            String userId, String mostRecentApprovalDate) {
+        fRaw = raw;
+        this.responseStatus = responseStatus;
+        this.userStatus = userStatus;
+        this.ageLower = ageLower;
+        this.ageUpper = ageUpper;
+        this.userId = userId;
+        this.mostRecentApprovalDate = mostRecentApprovalDate;
+    }
+
+    /**
+     * Parses the JSON returned in the provider's "data" column, or returns the memoized result
+     * if it is identical to the previous response.
+     */
+    static AgeDataResponse parse(String jsonResponse) throws IOException {
+        AgeDataResponse last = sLastParsed;
+        if (last != null && last.fRaw.equals(jsonResponse)) {
+            return last;
+        }
+
+        String responseStatus = "";
+        String userStatus = "";
+        int ageLower = LuaEvent.NONE;
+        int ageUpper = LuaEvent.NONE;
+        String userId = null;
+        String mostRecentApprovalDate = null;
+
+        try (JsonReader reader = new JsonReader(new StringReader(jsonResponse))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "responseStatus":
+                        responseStatus = reader.nextString();
+                        break;
+                    case "userStatus":
+                        userStatus = reader.nextString();
+                        break;
+                    case "ageLower":
+                        ageLower = reader.nextInt();
+                        break;
+                    case "ageUpper":
+                        ageUpper = reader.nextInt();
+                        break;
+                    case "userId":
+                        userId = reader.nextString();
+                        break;
+                    case "mostRecentApprovalDate":
+                        mostRecentApprovalDate = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            // JsonReader reports unexpected value types this way rather than as an IOException
+            throw new IOException(e.getMessage(), e);
+        }
+
+        AgeDataResponse response = new AgeDataResponse(jsonResponse, responseStatus, userStatus, ageLower, ageUpper,
+                userId, mostRecentApprovalDate);
+        sLastParsed = response;
+        return response;
+    }
+
+    /**
+     * Returns true if other reports the same status, age range and approval as this response.
+     */
+    boolean hasSameStatus(AgeDataResponse other) {
+        return responseStatus.equals(other.responseStatus)
+                && userStatus.equals(other.userStatus)
+                && ageLower == other.ageLower
+                && ageUpper == other.ageUpper
+                && Objects.equals(mostRecentApprovalDate, other.mostRecentApprovalDate);
+    }
+
+    boolean isSuccess() {
+        return "SUCCESS".equals(responseStatus);
+    }
+
+    boolean isVerified() {
+        return "VERIFIED".equals(userStatus);
+    }
+
+    boolean isSupervised() {
+        return "SUPERVISED".equals(userStatus);
+    }
+}
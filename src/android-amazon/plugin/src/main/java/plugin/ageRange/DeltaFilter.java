@@ -0,0 +1,79 @@
+//
+//  DeltaFilter.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import android.os.SystemClock;
+
+import java.util.List;
+
+/**
+ * Drops ageRangeEvents that report the same result as the last one delivered to Lua.
+ * <p>
+ * When enabled, each successful result is compared with the last delivered one and only
+ * goes through if a field changed, with the changed field names attached. An unchanged
+ * result is still delivered as a heartbeat once the heartbeat interval has passed since
+ * the last delivery. Errors always go through. Results that must be delivered regardless,
+ * such as those for a request's own callback, are still recorded as the last delivered one.
+ * All methods are thread-safe.
+ */
+final class DeltaFilter {
+    /** The baseline for the first result, so every field it sets counts as changed. */
+    private static final AgeRangeEvent EMPTY = new AgeRangeEvent();
+
+    private boolean fEnabled;
+    private long fHeartbeatMs;
+    private AgeRangeEvent fLastDelivered;
+    private long fLastDeliveredAt;
+
+    /**
+     * Turns delta mode on or off. A heartbeat interval of zero or less disables heartbeats.
+     */
+    synchronized void configure(boolean enabled, long heartbeatMs) {
+        fEnabled = enabled;
+        fHeartbeatMs = heartbeatMs;
+        if (!enabled) {
+            fLastDelivered = null;
+        }
+    }
+
+    /**
+     * Returns false if the event should not be delivered. Otherwise fills in its
+     * changedFields and isHeartbeat fields when delta mode is on.
+     */
+    synchronized boolean accept(AgeRangeEvent event) {
+        if (!fEnabled || event.isError) {
+            return true;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        List<String> changedFields = event.getChangedFields(fLastDelivered != null ? fLastDelivered : EMPTY);
+        if (changedFields.isEmpty()) {
+            if (fHeartbeatMs <= 0 || now - fLastDeliveredAt < fHeartbeatMs) {
+                return false;
+            }
+            event.isHeartbeat = true;
+        }
+
+        event.changedFields = changedFields;
+        fLastDelivered = event;
+        fLastDeliveredAt = now;
+        return true;
+    }
+
+    /**
+     * Records an event that is delivered without going through accept(), so later results are compared
+     * with it. Fills in its changedFields when delta mode is on.
+     */
+    synchronized void record(AgeRangeEvent event) {
+        if (!fEnabled || event.isError) {
+            return;
+        }
+
+        event.changedFields = event.getChangedFields(fLastDelivered != null ? fLastDelivered : EMPTY);
+        fLastDelivered = event;
+        fLastDeliveredAt = SystemClock.elapsedRealtime();
+    }
+}
@@ -0,0 +1,127 @@
+//
+//  HandleDecisionCache.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of communication permission decisions, keyed by handle and handle kind.
+ * <p>
+ * Entries expire after a configurable time-to-live, and the least recently used entry is evicted
+ * once the cache is full. Every decision depends on the user's supervision status, so the whole
+ * cache is dropped when a lookup reports a different status key. A size or TTL of zero disables
+ * caching. All methods are thread-safe.
+ */
+final class HandleDecisionCache {
+    /** Default limits. */
+    static final int DEFAULT_MAX_ENTRIES = 256;
+    static final long DEFAULT_TTL_MS = 5 * 60 * 1000;
+
+    /** A cached decision. Instances are immutable. */
+    static final class Decision {
+        final boolean isSupervised;
+        final String userStatus;
+        final boolean requiresParentalApproval;
+        final long storedAt;
+
+        Decision(boolean isSupervised, String userStatus, boolean requiresParentalApproval) {
+            this.isSupervised = isSupervised;
+            this.userStatus = userStatus;
+            this.requiresParentalApproval = requiresParentalApproval;
+            this.storedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private final LinkedHashMap<String, Decision> fEntries = new LinkedHashMap<String, Decision>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Decision> eldest) {
+            return size() > fMaxEntries;
+        }
+    };
+
+    private int fMaxEntries = DEFAULT_MAX_ENTRIES;
+    private long fTtlMs = DEFAULT_TTL_MS;
+
+    /** Status key the cached decisions were made under, or null if none has been seen. */
+    private String fStatusKey;
+
+    /**
+     * Returns the decision for a handle, or null if there is none or it has expired.
+     */
+    synchronized Decision get(String handle, String handleKind) {
+        String key = key(handle, handleKind);
+        Decision decision = fEntries.get(key);
+        if (decision == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - decision.storedAt >= fTtlMs) {
+            fEntries.remove(key);
+            return null;
+        }
+        return decision;
+    }
+
+    /**
+     * Stores a decision made under the given status key. Decisions made under a status older than the
+     * latest one seen are ignored.
+     */
+    synchronized void put(String handle, String handleKind, String statusKey, Decision decision) {
+        if (fStatusKey == null) {
+            fStatusKey = statusKey;
+        } else if (!fStatusKey.equals(statusKey)) {
+            return;
+        }
+        if (fMaxEntries <= 0 || fTtlMs <= 0) {
+            return;
+        }
+        fEntries.put(key(handle, handleKind), decision);
+    }
+
+    /**
+     * Records the latest status key seen from the backend, dropping every entry if it changed.
+     */
+    synchronized void onStatus(String statusKey) {
+        if (fStatusKey != null && !fStatusKey.equals(statusKey)) {
+            fEntries.clear();
+        }
+        fStatusKey = statusKey;
+    }
+
+    /**
+     * Drops every entry so the next check goes to the backend.
+     */
+    synchronized void invalidate() {
+        fEntries.clear();
+        fStatusKey = null;
+    }
+
+    /**
+     * Sets the limits. A size or TTL of zero disables caching; values below zero keep the current setting.
+     */
+    synchronized void configure(int maxEntries, long ttlMs) {
+        if (maxEntries >= 0) {
+            fMaxEntries = maxEntries;
+        }
+        if (ttlMs >= 0) {
+            fTtlMs = ttlMs;
+        }
+        if (fMaxEntries <= 0 || fTtlMs <= 0) {
+            fEntries.clear();
+        } else {
+            while (fEntries.size() > fMaxEntries) {
+                String eldest = fEntries.keySet().iterator().next();
+                fEntries.remove(eldest);
+            }
+        }
+    }
+
+    private static String key(String handle, String handleKind) {
+        return handleKind + '\u0000' + handle;
+    }
+}
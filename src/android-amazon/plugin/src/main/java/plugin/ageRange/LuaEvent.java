@@ -0,0 +1,138 @@
+//
+//  LuaEvent.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import com.ansca.corona.CoronaLua;
+import com.naef.jnlua.LuaState;
+
+import java.util.List;
+
+/**
+ * Base class for typed plugin events.
+ * <p>
+ * Subclasses hold their fields as plain Java members and write them straight into a
+ * pre-sized Lua event table, so dispatching an event needs no intermediate map or boxing.
+ */
+abstract class LuaEvent implements EventDispatcher.Event {
+    /** Marks an integer field as absent so it is left out of the event table. */
+    static final int NONE = Integer.MIN_VALUE;
+
+    /** Marks a long field as absent so it is left out of the event table. */
+    static final long NONE_LONG = Long.MIN_VALUE;
+
+    /** Lua registry ID of the listener that receives this event. */
+    int listener = CoronaLua.REFNIL;
+
+    /** Per-request callback that receives this event instead of the listener, or REFNIL. */
+    int callback = CoronaLua.REFNIL;
+
+    /** Pool that the callback reference is returned to once the event has been delivered. */
+    RefPool callbackPool;
+
+    /** ID of the request that produced this event, as returned to Lua, or NONE. */
+    int requestId = NONE;
+
+    /** True if more events for the same request follow, so the callback must not be released yet. */
+    boolean keepsCallback;
+
+    /** Every event reports whether it describes a failure. */
+    boolean isError;
+
+    /** Counters to update when this event is delivered, or null if it isn't tracked. */
+    PluginStats.ApiStats stats;
+
+    /** System.nanoTime() when the Lua call that produced this event was made. */
+    long startNanos;
+
+    /** System.nanoTime() when this event was queued for the Corona runtime. */
+    long postedNanos;
+
+    /** Returns the value of the event's "name" field. */
+    abstract String getName();
+
+    /** Returns the most fields this event sets besides "name", used to pre-size the table. */
+    abstract int getFieldCount();
+
+    /** Sets this event's fields on the table at the top of the stack. */
+    abstract void pushFields(LuaState L);
+
+    /**
+     * Pushes the event table onto the Lua stack.
+     */
+    final void push(LuaState L) {
+        L.newTable(0, getFieldCount() + 2);
+        L.pushString(getName());
+        L.setField(-2, "name");
+        setIntegerField(L, "requestId", requestId);
+        pushFields(L);
+    }
+
+    /**
+     * Pushes the event table and calls the request's callback, or the listener, with it.
+     */
+    @Override
+    public void dispatch(LuaState L) {
+        if (stats != null) {
+            stats.recordDelivered(isError, startNanos, postedNanos, System.nanoTime());
+        }
+
+        try {
+            push(L);
+            CoronaLua.dispatchEvent(L, callback != CoronaLua.REFNIL ? callback : listener, 0);
+        } catch (Exception ignored) {
+        } finally {
+            if (callback != CoronaLua.REFNIL && !keepsCallback) {
+                callbackPool.release(L, callback);
+            }
+        }
+    }
+
+    static void setField(LuaState L, String key, String value) {
+        if (value != null) {
+            L.pushString(value);
+            L.setField(-2, key);
+        }
+    }
+
+    /** Sets an optional field to an array of strings; null leaves it out. */
+    static void setField(LuaState L, String key, List<String> values) {
+        if (values != null) {
+            L.newTable(values.size(), 0);
+            for (int i = 0; i < values.size(); i++) {
+                L.pushString(values.get(i));
+                L.rawSet(-2, i + 1);
+            }
+            L.setField(-2, key);
+        }
+    }
+
+    static void setField(LuaState L, String key, boolean value) {
+        L.pushBoolean(value);
+        L.setField(-2, key);
+    }
+
+    /** Sets an optional boolean field; null leaves it out. Boolean.TRUE/FALSE are shared, so this never allocates. */
+    static void setField(LuaState L, String key, Boolean value) {
+        if (value != null) {
+            L.pushBoolean(value);
+            L.setField(-2, key);
+        }
+    }
+
+    static void setIntegerField(LuaState L, String key, int value) {
+        if (value != NONE) {
+            L.pushInteger(value);
+            L.setField(-2, key);
+        }
+    }
+
+    static void setNumberField(LuaState L, String key, long value) {
+        if (value != NONE_LONG) {
+            L.pushNumber(value);
+            L.setField(-2, key);
+        }
+    }
+}
@@ -8,24 +8,27 @@
 package plugin.ageRange;
 
 import android.app.Activity;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
 
 import com.ansca.corona.CoronaActivity;
 import com.ansca.corona.CoronaEnvironment;
 import com.ansca.corona.CoronaLua;
 import com.ansca.corona.CoronaRuntime;
 import com.ansca.corona.CoronaRuntimeListener;
-import com.ansca.corona.CoronaRuntimeTask;
 import com.naef.jnlua.JavaFunction;
 import com.naef.jnlua.LuaState;
+import com.naef.jnlua.LuaType;
 import com.naef.jnlua.NamedJavaFunction;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.database.Cursor;
 import android.net.Uri;
-import org.json.JSONObject;
-import org.json.JSONException;
 
 /**
  * Implements the Lua interface for a Corona plugin.
@@ -35,29 +38,167 @@ import org.json.JSONException;
  */
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
+    /** Supplies the Corona activity and application context the plugin works with. */
+    interface Environment {
+        /** Returns the running Corona activity, or null if there is none. */
+        CoronaActivity getCoronaActivity();
+
+        /** Returns the application context, or null if it is not available yet. */
+        Context getApplicationContext();
+    }
+
+    /** The environment of the app's own Corona runtime. */
+    static final Environment CORONA_ENVIRONMENT = new Environment() {
+        @Override
+        public CoronaActivity getCoronaActivity() {
+            return CoronaEnvironment.getCoronaActivity();
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return CoronaEnvironment.getApplicationContext();
+        }
+    };
+
     /** Lua registry ID to the Lua function to be called when events occur. */
     private int fListener;
 
+    /** Where the activity and application context come from. */
+    private final Environment fEnvironment;
+
+    /** Batches events into one Corona runtime task per tick. */
+    private final EventDispatcher fEventDispatcher;
+
+    /** Latency and throughput counters reported by getStats(). */
+    private final PluginStats fStats = new PluginStats();
+
+    /** Feature gating rules registered through init(), or null if there are none. */
+    private volatile AgePolicy fPolicy;
+
+    /** Registry slots for per-request callbacks, reused from one request to the next. */
+    private final RefPool fCallbackPool = new RefPool();
+
+    /** Drops unchanged requestAgeRange() results when delta mode is on. */
+    private final DeltaFilter fDeltaFilter = new DeltaFilter();
+
+    /** Receives a span for each phase of a lookup; Tracer.NONE unless tracing is enabled. */
+    private volatile Tracer fTracer = Tracer.NONE;
+
+    /** Source of cookies that pair up asynchronous trace sections. */
+    private static final AtomicInteger sTraceCookies = new AtomicInteger();
+
+    /** Trace section names */
+    private static final String TRACE_THREAD_HOP = "ageRange.threadHop";
+    private static final String TRACE_PROVIDER_QUERY = "ageRange.providerQuery";
+    private static final String TRACE_PARSE_RESULT = "ageRange.parseResult";
+
     /** Event names */
-    private static final String AGE_RANGE_EVENT = "ageRangeEvent";
-    private static final String UPDATE_EVENT = "significantUpdateEvent";
-    private static final String COMMUNICATION_EVENT = "communicationEvent";
+    static final String AGE_RANGE_EVENT = "ageRangeEvent";
+    static final String UPDATE_EVENT = "significantUpdateEvent";
+    static final String COMMUNICATION_EVENT = "communicationEvent";
+    static final String COMMUNICATION_BATCH_EVENT = "communicationBatchEvent";
+
+    /** Default number of handles reported per communicationBatchEvent. */
+    private static final int DEFAULT_BATCH_CHUNK_SIZE = 100;
+
+    /** Values of the platform and store event fields */
+    private static final String PLATFORM = "android";
+    private static final String STORE = "amazon";
 
     /** Amazon Age Data API URI */
     private static final Uri AMAZON_AGE_DATA_URI = Uri.parse("content://amzn_appstore/getUserAgeData");
 
+    /** Most recent GetUserAgeData response, shared by every request API. */
+    private static final ResultCache<String> sResultCache = new ResultCache<>();
+    private static final HandleDecisionCache sHandleCache = new HandleDecisionCache();
+
+    /** Coalesces concurrent GetUserAgeData queries into a single content provider call. */
+    private static final SingleFlight<String> sInFlightQuery = new SingleFlight<>();
+
+    /**
+     * Background thread for content provider queries and response parsing.
+     * Keeps the cross-process call off the UI and Corona runtime threads.
+     */
+    private static final ScheduledExecutorService sExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "plugin.ageRange");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Timer thread for request timeouts. Kept apart from sExecutor, which blocks in the provider query,
+     * so a stalled provider can't hold back the timeouts of the requests waiting on it.
+     */
+    private static final ScheduledExecutorService sTimeoutScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "plugin.ageRange.timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Requests that can still time out or be cancelled from Lua. */
+    private final RequestTracker fRequestTracker = new RequestTracker(sTimeoutScheduler);
+
+    /** True to start an age lookup in the background as soon as the runtime starts. */
+    private boolean fPrefetch;
+
+    /** True once onStarted() has been called. */
+    private boolean fStarted;
+
+    /** True to keep the last result on disk and serve it on cold start while revalidating. */
+    private boolean fPersistResult;
+
+    /** Where the last result is saved; null unless persistResult is enabled. */
+    private volatile SnapshotStore fSnapshotStore;
+
+    /** Last known good result, from disk or the latest backend answer, or null if there is none. */
+    private volatile SnapshotStore.Snapshot fSnapshot;
+
+    /** How old a last known good result may be and still be served; 0 disables stale-while-revalidate. */
+    private volatile long fMaxStalenessMs;
+
+    /** True once the backend has answered in this process, after which the saved result is no longer served. */
+    private volatile boolean fRevalidated;
+
+    /** Re-queries the Amazon age data provider when it reports a change. */
+    private final ContentObserver fAgeDataObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            checkForAgeDataChange();
+        }
+    };
+
+    /** Resolver that fAgeDataObserver is registered with, or null while it is not. Guarded by fAgeDataObserver. */
+    private ContentResolver fObservedResolver;
+
+    /** True from startListeningForCommunicationResponses() until the runtime exits. */
+    private volatile boolean fListening;
+
+    /** Response that later changes are compared against. Guarded by fAgeDataObserver. */
+    private AgeDataResponse fLastObserved;
+
     /**
      * Creates a new Lua interface to this plugin.
      */
     @SuppressWarnings("unused")
     public LuaLoader() {
-        // Initialize member variables.
-        fListener = CoronaLua.REFNIL;
+        this(new EventDispatcher(), CORONA_ENVIRONMENT);
 
         // Set up this plugin to listen for Corona runtime events
         CoronaEnvironment.addRuntimeListener(this);
     }
 
+    /**
+     * Creates an instance that delivers its events through the given dispatcher and takes its
+     * activity and context from the given environment. Unlike the public constructor it does not
+     * register for runtime events, so it can be driven directly, e.g. by the load-test harness.
+     */
+    LuaLoader(EventDispatcher eventDispatcher, Environment environment) {
+        // Initialize member variables.
+        fListener = CoronaLua.REFNIL;
+        fEventDispatcher = eventDispatcher;
+        fEnvironment = environment;
+    }
+
     /**
      * Called when this plugin is being loaded via the Lua require() function.
      */
@@ -69,7 +210,15 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
                 new RequestAgeRangeWrapper(),
                 new RequestSignificantUpdatePermissionWrapper(),
                 new RequestCommunicationPermissionWrapper(),
-                new StartListeningForCommunicationResponsesWrapper()
+                new StartListeningForCommunicationResponsesWrapper(),
+                new InvalidateCacheWrapper(),
+                new CancelRequestWrapper(),
+                new GetStatsWrapper(),
+                new StopListeningForCommunicationResponsesWrapper(),
+                new GetCachedAgeRangeWrapper(),
+                new CanUseWrapper(),
+                new CanUseManyWrapper(),
+                new RequestCommunicationPermissionsWrapper()
         };
         String libName = L.toString( 1 );
         L.register(libName, luaFunctions);
@@ -81,364 +230,1082 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
     public void onLoaded(CoronaRuntime runtime) {}
 
     @Override
-    public void onStarted(CoronaRuntime runtime) {}
+    public void onStarted(CoronaRuntime runtime) {
+        fStarted = true;
+        if (fPrefetch) {
+            prefetch();
+        }
+    }
 
     @Override
-    public void onSuspended(CoronaRuntime runtime) {}
+    public void onSuspended(CoronaRuntime runtime) {
+        // Stop provider callbacks while in the background
+        unregisterAgeDataObserver();
+    }
 
     @Override
-    public void onResumed(CoronaRuntime runtime) {}
+    public void onResumed(CoronaRuntime runtime) {
+        if (fListening) {
+            CoronaActivity activity = fEnvironment.getCoronaActivity();
+            if (activity != null) {
+                registerAgeDataObserver(activity.getApplicationContext());
+            }
+
+            // Changes made while suspended were not observed
+            checkForAgeDataChange();
+        }
+    }
 
     @Override
     public void onExiting(CoronaRuntime runtime) {
-        // Remove the Lua listener references
+        // Pending events can no longer be delivered
+        fEventDispatcher.clear();
+        fRequestTracker.cancelAll();
+        fStarted = false;
+
+        fListening = false;
+        unregisterAgeDataObserver();
+        synchronized (fAgeDataObserver) {
+            fLastObserved = null;
+        }
+
+        // Remove the Lua listener references; pooled callback slots go away with the Lua state
         CoronaLua.deleteRef(runtime.getLuaState(), fListener);
         fListener = CoronaLua.REFNIL;
+        fCallbackPool.clear();
     }
 
     /**
-     * Dispatch age range event to Lua
+     * Replace the tracer that receives lookup and dispatch spans, e.g. with a recorder in tests
      */
-    private void dispatchAgeRangeEvent(final Map<String, Object> eventData) {
-        CoronaActivity activity = CoronaEnvironment.getCoronaActivity();
-        if (activity == null) return;
-
-        activity.getRuntimeTaskDispatcher().send(new CoronaRuntimeTask() {
-            @Override
-            public void executeUsing(CoronaRuntime runtime) {
-                LuaState L = runtime.getLuaState();
-                CoronaLua.newEvent(L, AGE_RANGE_EVENT);
-
-                for (Map.Entry<String, Object> entry : eventData.entrySet()) {
-                    pushValue(L, entry.getValue());
-                    L.setField(-2, entry.getKey());
-                }
+    void setTracer(Tracer tracer) {
+        fTracer = tracer;
+        fEventDispatcher.setTracer(tracer);
+    }
 
-                try {
-                    CoronaLua.dispatchEvent(L, fListener, 0);
-                } catch (Exception ignored) {}
-            }
-        });
+    /**
+     * Dispatch an event to the Lua listener
+     */
+    private void dispatchEvent(LuaEvent event) {
+        event.listener = fListener;
+        event.postedNanos = System.nanoTime();
+        fEventDispatcher.post(event);
     }
 
     /**
-     * Dispatch significant update event to Lua
+     * Dispatch an event produced by a Lua API call, recording it in that API's stats
      */
-    private void dispatchUpdateEvent(final Map<String, Object> eventData) {
-        CoronaActivity activity = CoronaEnvironment.getCoronaActivity();
-        if (activity == null) return;
+    private void dispatchEvent(LuaEvent event, PluginStats.ApiStats stats, long startNanos) {
+        event.stats = stats;
+        event.startNanos = startNanos;
+        dispatchEvent(event);
+    }
 
-        activity.getRuntimeTaskDispatcher().send(new CoronaRuntimeTask() {
-            @Override
-            public void executeUsing(CoronaRuntime runtime) {
-                LuaState L = runtime.getLuaState();
-                CoronaLua.newEvent(L, UPDATE_EVENT);
+    /**
+     * Record a result that came from the backend, saving it as the snapshot if persistence is enabled
+     */
+    private void onFreshResult(AgeRangeEvent result) {
+        if (result.isError) {
+            onFailedResult();
+            return;
+        }
+        fRevalidated = true;
+        sHandleCache.onStatus(result.getStatusKey());
+        SnapshotStore.Snapshot snapshot = new SnapshotStore.Snapshot(result, System.currentTimeMillis(), false);
+        fSnapshot = snapshot;
+        SnapshotStore store = fSnapshotStore;
+        if (store != null) {
+            sExecutor.execute(() -> store.save(snapshot));
+        }
+    }
 
-                for (Map.Entry<String, Object> entry : eventData.entrySet()) {
-                    pushValue(L, entry.getValue());
-                    L.setField(-2, entry.getKey());
-                }
+    /**
+     * Record a lookup the backend answered with a definite error rather than an outage. The saved result
+     * is then no longer served ahead of lookups, and only stands in for failed ones within maxStalenessMs
+     */
+    private void onFailedResult() {
+        fRevalidated = true;
+    }
 
-                try {
-                    CoronaLua.dispatchEvent(L, fListener, 0);
-                } catch (Exception ignored) {}
-            }
-        });
+    /**
+     * Returns a result to answer with straight away while a fresh lookup runs, or null to wait for the lookup.
+     * That is the saved result after a cold start, or, with stale-while-revalidate, the last known good result
+     * once the cache has expired.
+     */
+    private AgeRangeEvent getStaleResult() {
+        SnapshotStore.Snapshot snapshot = fSnapshot;
+        if (snapshot == null) {
+            return null;
+        }
+        long ageMs = snapshot.getAgeMs();
+        long maxStalenessMs = fMaxStalenessMs;
+        if (maxStalenessMs > 0 && ageMs > maxStalenessMs) {
+            return null;
+        }
+        if (fRevalidated && (maxStalenessMs <= 0 || sResultCache.get() != null)) {
+            return null;
+        }
+        return newStaleEvent(snapshot, ageMs);
     }
 
     /**
-     * Dispatch communication event to Lua
+     * Returns the last known good result to report instead of a failed lookup, or null if there is none
+     * within maxStalenessMs
      */
-    private void dispatchCommunicationEvent(final Map<String, Object> eventData) {
-        CoronaActivity activity = CoronaEnvironment.getCoronaActivity();
-        if (activity == null) return;
+    private AgeRangeEvent getLastGoodResult() {
+        SnapshotStore.Snapshot snapshot = fSnapshot;
+        long maxStalenessMs = fMaxStalenessMs;
+        if (snapshot == null || maxStalenessMs <= 0) {
+            return null;
+        }
+        long ageMs = snapshot.getAgeMs();
+        return ageMs <= maxStalenessMs ? newStaleEvent(snapshot, ageMs) : null;
+    }
 
-        activity.getRuntimeTaskDispatcher().send(new CoronaRuntimeTask() {
-            @Override
-            public void executeUsing(CoronaRuntime runtime) {
-                LuaState L = runtime.getLuaState();
-                CoronaLua.newEvent(L, COMMUNICATION_EVENT);
+    private AgeRangeEvent newStaleEvent(SnapshotStore.Snapshot snapshot, long ageMs) {
+        fStats.staleServed.incrementAndGet();
+        AgeRangeEvent event = snapshot.result.copyResult();
+        event.isStale = true;
+        event.dataAgeMs = ageMs;
+        return event;
+    }
 
-                for (Map.Entry<String, Object> entry : eventData.entrySet()) {
-                    pushValue(L, entry.getValue());
-                    L.setField(-2, entry.getKey());
-                }
+    /**
+     * Dispatch the event that answers a request, to the request's own callback if it has one
+     */
+    private void dispatchEvent(LuaEvent event, PluginStats.ApiStats stats, long startNanos,
+                               RequestTracker.Request request) {
+        event.requestId = request.id;
+        event.callback = request.callback;
+        event.callbackPool = fCallbackPool;
+        dispatchEvent(event, stats, startNanos);
+    }
 
-                try {
-                    CoronaLua.dispatchEvent(L, fListener, 0);
-                } catch (Exception ignored) {}
-            }
-        });
+    /**
+     * Returns a registry reference to the per-call callback, a function passed as the last argument at or
+     * after firstIndex, or REFNIL if there is none
+     */
+    private int acquireCallback(LuaState L, int firstIndex) {
+        int top = L.getTop();
+        if (top >= firstIndex && L.isFunction(top)) {
+            return fCallbackPool.acquire(L, top);
+        }
+        return CoronaLua.REFNIL;
     }
 
     /**
-     * Helper method to push various value types to Lua stack
+     * Dispatch a requestAgeRange() result, unless delta mode drops it as unchanged.
+     * Requests with their own callback always get their result, which still becomes the delta baseline.
      */
-    private void pushValue(LuaState L, Object value) {
-        if (value instanceof String) {
-            L.pushString((String) value);
-        } else if (value instanceof Integer) {
-            L.pushInteger((Integer) value);
-        } else if (value instanceof Boolean) {
-            L.pushBoolean((Boolean) value);
-        } else if (value instanceof Double) {
-            L.pushNumber((Double) value);
-        } else if (value instanceof Long) {
-            L.pushNumber(((Long) value).doubleValue());
+    private void dispatchAgeRangeResult(AgeRangeEvent event, long startNanos, RequestTracker.Request request) {
+        if (request.callback != CoronaLua.REFNIL) {
+            fDeltaFilter.record(event);
+            dispatchEvent(event, fStats.requestAgeRange, startNanos, request);
+        } else if (fDeltaFilter.accept(event)) {
+            dispatchEvent(event, fStats.requestAgeRange, startNanos, request);
         } else {
-            L.pushNil();
+            fStats.unchangedSuppressed.incrementAndGet();
+            fStats.requestAgeRange.recordCompleted(false, System.nanoTime() - startNanos);
         }
     }
 
     /**
      * Initialize age range listener
+     * Parameters: listener (function), options (table, optional)
+     * Options: cacheTtlMs (number) - how long a result is reused across requests, 0 disables caching
+     *          prefetch (boolean) - start a GetUserAgeData query once the app has started so the first request is warm
+     *          tracing (boolean) - emit android.os.Trace sections for each phase of a lookup
+     *          deltaMode (boolean) - only send an ageRangeEvent when the result changed, listing changedFields
+     *          heartbeatMs (number) - in delta mode, still send an unchanged result once this long has passed
+     *          persistResult (boolean) - save the last result to app storage and serve it, flagged isStale, on the
+     *                                    first request after a cold start while a fresh lookup runs
+     *          policies (table) - feature rules for canUse(), keyed by feature ID, each with optional
+     *                             minAge, maxAge, allowSupervised, allowUnknown and statuses fields
+     *          maxStalenessMs (number) - serve the last known good result, flagged isStale, while the expired cache
+     *                                    is refreshed in the background or when the lookup fails; 0 disables this
      */
     @SuppressWarnings({"WeakerAccess", "SameReturnValue"})
     public int init(LuaState L) {
         int listenerIndex = 1;
+        int optionsIndex = 2;
+
+        if (CoronaLua.isListener(L, listenerIndex, AGE_RANGE_EVENT) ||
+                CoronaLua.isListener(L, listenerIndex, UPDATE_EVENT) ||
+                CoronaLua.isListener(L, listenerIndex, COMMUNICATION_EVENT) ||
+                CoronaLua.isListener(L, listenerIndex, COMMUNICATION_BATCH_EVENT)) {
+            if (fListener == CoronaLua.REFNIL) {
+                fListener = CoronaLua.newRef(L, listenerIndex);
+            } else {
+                // Replace the listener in place, so the old one isn't leaked and queued events reach the new one
+                L.pushValue(listenerIndex);
+                L.rawSet(LuaState.REGISTRYINDEX, fListener);
+            }
+        }
+
+        if (L.isTable(optionsIndex)) {
+            L.getField(optionsIndex, "cacheTtlMs");
+            if (L.isNumber(-1)) {
+                sResultCache.setTtl((long) L.toNumber(-1));
+            }
+            L.pop(1);
+
+            int communicationCacheSize = -1;
+            long communicationCacheTtlMs = -1;
+            L.getField(optionsIndex, "communicationCacheSize");
+            if (L.isNumber(-1)) {
+                communicationCacheSize = Math.max(0, L.toInteger(-1));
+            }
+            L.pop(1);
+            L.getField(optionsIndex, "communicationCacheTtlMs");
+            if (L.isNumber(-1)) {
+                communicationCacheTtlMs = Math.max(0, (long) L.toNumber(-1));
+            }
+            L.pop(1);
+            sHandleCache.configure(communicationCacheSize, communicationCacheTtlMs);
 
-        if (CoronaLua.isListener(L, listenerIndex, AGE_RANGE_EVENT)) {
-            fListener = CoronaLua.newRef(L, listenerIndex);
+            L.getField(optionsIndex, "prefetch");
+            if (L.isBoolean(-1)) {
+                fPrefetch = L.toBoolean(-1);
+            }
+            L.pop(1);
+
+            L.getField(optionsIndex, "tracing");
+            if (L.isBoolean(-1)) {
+                setTracer(L.toBoolean(-1) ? new SystemTracer() : Tracer.NONE);
+            }
+            L.pop(1);
+
+            boolean deltaMode = false;
+            long heartbeatMs = 0;
+            L.getField(optionsIndex, "deltaMode");
+            if (L.isBoolean(-1)) {
+                deltaMode = L.toBoolean(-1);
+            }
+            L.pop(1);
+
+            L.getField(optionsIndex, "heartbeatMs");
+            if (L.isNumber(-1)) {
+                heartbeatMs = (long) L.toNumber(-1);
+            }
+            L.pop(1);
+            fDeltaFilter.configure(deltaMode, heartbeatMs);
+
+            L.getField(optionsIndex, "policies");
+            if (L.isTable(-1)) {
+                fPolicy = AgePolicy.fromLua(L, L.getTop());
+            }
+            L.pop(1);
+
+            L.getField(optionsIndex, "maxStalenessMs");
+            if (L.isNumber(-1)) {
+                fMaxStalenessMs = Math.max(0, (long) L.toNumber(-1));
+            }
+            L.pop(1);
+
+            L.getField(optionsIndex, "persistResult");
+            if (L.isBoolean(-1)) {
+                fPersistResult = L.toBoolean(-1);
+            }
+            L.pop(1);
         }
 
+        if (fPersistResult && fSnapshotStore == null) {
+            Context context = fEnvironment.getApplicationContext();
+            if (context != null) {
+                SnapshotStore store = new SnapshotStore(context.getNoBackupFilesDir());
+                fSnapshotStore = store;
+                // A single read of at most a few KB, done here so that a requestAgeRange() made
+                // straight after init() can already answer with the saved result
+                if (fSnapshot == null) {
+                    fSnapshot = store.load();
+                }
+            }
+        } else if (!fPersistResult && fSnapshotStore != null) {
+            SnapshotStore store = fSnapshotStore;
+            fSnapshotStore = null;
+            fSnapshot = null;
+            sExecutor.execute(store::delete);
+        }
+
+        // init() may run after the runtime has started, e.g. from a scene
+        if (fPrefetch && fStarted) {
+            prefetch();
+        }
+
+        return 0;
+    }
+
+    /**
+     * Start a background GetUserAgeData query and keep its result in the result cache.
+     * A request made while it is running joins it instead of starting its own lookup.
+     */
+    private void prefetch() {
+        CoronaActivity activity = fEnvironment.getCoronaActivity();
+        if (activity != null) {
+            queryAgeData(activity, (jsonResponse, error) -> {});
+        }
+    }
+
+    /**
+     * Drop the cached age data so the next request queries the Amazon content provider
+     */
+    @SuppressWarnings({"WeakerAccess", "SameReturnValue"})
+    public int invalidateCache(LuaState L) {
+        sResultCache.invalidate();
+        sHandleCache.invalidate();
+
+        // The saved result must not outlive the cache it was taken from
+        SnapshotStore store = fSnapshotStore;
+        fSnapshot = null;
+        if (store != null) {
+            sExecutor.execute(store::delete);
+        }
         return 0;
     }
 
+    /**
+     * Fetch the GetUserAgeData JSON response, serving it from the result cache when possible.
+     * Calls made while a query is already running share that query's result.
+     * The query runs on the plugin's background thread, and so does the callback unless the
+     * response came from the cache. The callback receives a null response if the Amazon Age
+     * Data API is not available.
+     */
+    private void queryAgeData(Activity activity, SingleFlight.Callback<String> callback) {
+        String cached = sResultCache.get();
+        if (cached != null) {
+            fStats.cacheHits.incrementAndGet();
+            callback.onComplete(cached, null);
+            return;
+        }
+        fStats.cacheMisses.incrementAndGet();
+
+        if (!sInFlightQuery.join(callback)) {
+            fStats.coalesced.incrementAndGet();
+            return;
+        }
+
+        Context context = activity.getApplicationContext();
+        Tracer tracer = fTracer;
+        int cookie = sTraceCookies.incrementAndGet();
+        tracer.beginAsyncSection(TRACE_THREAD_HOP, cookie);
+        sExecutor.execute(() -> {
+            tracer.endAsyncSection(TRACE_THREAD_HOP, cookie);
+            long startNanos = System.nanoTime();
+            fStats.backend.recordCall();
+
+            String jsonResponse = null;
+            Exception error = null;
+            tracer.beginSection(TRACE_PROVIDER_QUERY);
+            try {
+                jsonResponse = readAgeData(context);
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                tracer.endSection();
+            }
+
+            fStats.backend.recordCompleted(jsonResponse == null, System.nanoTime() - startNanos);
+            if (jsonResponse != null) {
+                AgeDataResponse response = null;
+                tracer.beginSection(TRACE_PARSE_RESULT);
+                try {
+                    response = AgeDataResponse.parse(jsonResponse);
+                } catch (IOException e) {
+                    // Callers report the parse error
+                    onFailedResult();
+                } finally {
+                    tracer.endSection();
+                }
+                if (response != null) {
+                    // Only successes are cached, so a provider error isn't served for the whole TTL
+                    if (response.isSuccess()) {
+                        sResultCache.put(jsonResponse);
+                    }
+                    onFreshResult(newAgeRangeEvent(response));
+                }
+            }
+
+            // Callers parse the response again when handling it, which the parser answers from its memo
+            sInFlightQuery.complete(jsonResponse, error);
+        });
+    }
+
+    /**
+     * Query the Amazon content provider for the GetUserAgeData JSON response.
+     * Returns null if the Amazon Age Data API is not available on this device.
+     */
+    private String readAgeData(Context context) {
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(
+                    AMAZON_AGE_DATA_URI,
+                    null, null, null, null);
+
+            if (cursor == null || !cursor.moveToFirst()) {
+                return null;
+            }
+
+            // Get the JSON response from the cursor
+            int dataColumnIndex = cursor.getColumnIndex("data");
+            if (dataColumnIndex == -1) {
+                // Try getting the first column if "data" doesn't exist
+                dataColumnIndex = 0;
+            }
+            return cursor.getString(dataColumnIndex);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     /**
      * Request age range from user using Amazon's GetUserAgeData API
+     * Parameters: options (table, optional), callback (function, optional) - receives this request's event instead of the listener
+     * Options: timeoutMs (number) - dispatch a timeout event if no result arrives within this time
+     * Returns: request handle (number) that can be passed to cancelRequest() and matches the event's requestId
      */
     @SuppressWarnings("WeakerAccess")
     public int requestAgeRange(LuaState L) {
-        CoronaActivity activity = CoronaEnvironment.getCoronaActivity();
+        long startNanos = System.nanoTime();
+        fStats.requestAgeRange.recordCall();
+
+        int optionsIndex = 1;
+        long timeoutMs = 0;
+
+        // The first argument may be an options table; other arguments are accepted for iOS compatibility
+        if (L.isTable(optionsIndex)) {
+            L.getField(optionsIndex, "timeoutMs");
+            if (L.isNumber(-1)) {
+                timeoutMs = (long) L.toNumber(-1);
+            }
+            L.pop(1);
+        }
+
+        int callback = acquireCallback(L, 1);
+        RequestTracker.Request request = fRequestTracker.start(timeoutMs, callback,
+                timedOut -> dispatchEvent(AgeRangeEvent.timeout(), fStats.requestAgeRange, startNanos, timedOut));
+        L.pushInteger(request.id);
+
+        CoronaActivity activity = fEnvironment.getCoronaActivity();
         if (activity == null) {
-            Map<String, Object> eventData = new HashMap<>();
-            eventData.put("isError", true);
-            eventData.put("isAvailable", false);
-            eventData.put("declined", false);
-            eventData.put("errorMessage", "Activity not available");
-            dispatchAgeRangeEvent(eventData);
-            return 0;
+            fRequestTracker.finish(request);
+            dispatchEvent(AgeRangeEvent.error("Activity not available"), fStats.requestAgeRange, startNanos, request);
+            return 1;
         }
 
-        activity.runOnUiThread(() -> {
-            Cursor cursor = null;
-            try {
-                cursor = activity.getContentResolver().query(
-                        AMAZON_AGE_DATA_URI,
-                        null, null, null, null);
-
-                if (cursor == null || !cursor.moveToFirst()) {
-                    Map<String, Object> eventData = new HashMap<>();
-                    eventData.put("isError", true);
-                    eventData.put("isAvailable", false);
-                    eventData.put("declined", false);
-                    eventData.put("errorMessage", "Amazon Age Data API not available");
-                    dispatchAgeRangeEvent(eventData);
+        // Answer from the saved or last known good result and refresh it in the background
+        AgeRangeEvent stale = getStaleResult();
+        if (stale != null) {
+            fRequestTracker.finish(request);
+            dispatchAgeRangeResult(stale, startNanos, request);
+            prefetch();
+            return 1;
+        }
+
+        queryAgeData(activity, (jsonResponse, error) -> {
+            if (!fRequestTracker.finish(request)) {
+                return;
+            }
+
+            if (error != null || jsonResponse == null) {
+                // Keep reporting the last known good result while the provider can't be reached
+                AgeRangeEvent lastGood = getLastGoodResult();
+                if (lastGood != null) {
+                    lastGood.errorMessage = error != null
+                            ? "Amazon Age Data API error: " + error.getMessage()
+                            : "Amazon Age Data API not available";
+                    dispatchAgeRangeResult(lastGood, startNanos, request);
                     return;
                 }
+            }
 
-                // Get the JSON response from the cursor
-                int dataColumnIndex = cursor.getColumnIndex("data");
-                if (dataColumnIndex == -1) {
-                    // Try getting the first column if "data" doesn't exist
-                    dataColumnIndex = 0;
+            try {
+                if (error != null) {
+                    throw error;
                 }
-                String jsonResponse = cursor.getString(dataColumnIndex);
-
-                JSONObject json = new JSONObject(jsonResponse);
-                String responseStatus = json.optString("responseStatus", "");
-                String userStatus = json.optString("userStatus", "");
-
-                Map<String, Object> eventData = new HashMap<>();
-
-                if ("SUCCESS".equals(responseStatus)) {
-                    eventData.put("isError", false);
-                    eventData.put("isAvailable", true);
-                    eventData.put("declined", false);
-
-                    if ("VERIFIED".equals(userStatus)) {
-                        // User is verified as 18+
-                        eventData.put("lowerBound", json.optInt("ageLower", 18));
-                        // ageUpper is null for 18+ users
-                        eventData.put("hasParentalControls", false);
-                        eventData.put("userStatus", "verified");
-                    } else if ("SUPERVISED".equals(userStatus)) {
-                        // Supervised user (under 18)
-                        if (!json.isNull("ageLower")) {
-                            eventData.put("lowerBound", json.getInt("ageLower"));
-                        }
-                        if (!json.isNull("ageUpper")) {
-                            eventData.put("upperBound", json.getInt("ageUpper"));
-                        }
-                        eventData.put("hasParentalControls", true);
-                        eventData.put("userStatus", "supervised");
 
-                        // Include additional supervised user info
-                        if (!json.isNull("userId")) {
-                            eventData.put("installId", json.getString("userId"));
-                        }
-                        if (!json.isNull("mostRecentApprovalDate")) {
-                            eventData.put("mostRecentApprovalDate", json.getString("mostRecentApprovalDate"));
-                        }
-                    } else {
-                        // Unknown or empty status
-                        eventData.put("userStatus", userStatus.toLowerCase());
-                    }
-                } else {
-                    eventData.put("isError", true);
-                    eventData.put("isAvailable", false);
-                    eventData.put("declined", false);
-                    eventData.put("errorMessage", "Amazon Age Data API returned status: " + responseStatus);
+                if (jsonResponse == null) {
+                    dispatchEvent(AgeRangeEvent.error("Amazon Age Data API not available"), fStats.requestAgeRange, startNanos, request);
+                    return;
                 }
 
-                dispatchAgeRangeEvent(eventData);
+                dispatchAgeRangeResult(newAgeRangeEvent(AgeDataResponse.parse(jsonResponse)), startNanos, request);
 
-            } catch (JSONException e) {
-                Map<String, Object> eventData = new HashMap<>();
-                eventData.put("isError", true);
-                eventData.put("isAvailable", false);
-                eventData.put("declined", false);
-                eventData.put("errorMessage", "Failed to parse Amazon Age Data response: " + e.getMessage());
-                dispatchAgeRangeEvent(eventData);
+            } catch (IOException e) {
+                dispatchEvent(AgeRangeEvent.error("Failed to parse Amazon Age Data response: " + e.getMessage()), fStats.requestAgeRange, startNanos, request);
             } catch (Exception e) {
-                Map<String, Object> eventData = new HashMap<>();
-                eventData.put("isError", true);
-                eventData.put("isAvailable", false);
-                eventData.put("declined", false);
-                eventData.put("errorMessage", "Amazon Age Data API error: " + e.getMessage());
-                dispatchAgeRangeEvent(eventData);
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+                dispatchEvent(AgeRangeEvent.error("Amazon Age Data API error: " + e.getMessage()), fStats.requestAgeRange, startNanos, request);
             }
         });
 
-        return 0;
+        return 1;
+    }
+
+    /**
+     * Builds the ageRangeEvent for a GetUserAgeData response
+     */
+    static AgeRangeEvent newAgeRangeEvent(AgeDataResponse response) {
+        if (!response.isSuccess()) {
+            return AgeRangeEvent.error("Amazon Age Data API returned status: " + response.responseStatus);
+        }
+
+        AgeRangeEvent event = new AgeRangeEvent();
+        event.isError = false;
+        event.isAvailable = true;
+        event.declined = false;
+
+        if (response.isVerified()) {
+            // User is verified as 18+
+            event.lowerBound = response.ageLower != LuaEvent.NONE ? response.ageLower : 18;
+            // ageUpper is null for 18+ users
+            event.hasParentalControls = false;
+            event.userStatus = "verified";
+        } else if (response.isSupervised()) {
+            // Supervised user (under 18)
+            event.lowerBound = response.ageLower;
+            event.upperBound = response.ageUpper;
+            event.hasParentalControls = true;
+            event.userStatus = "supervised";
+
+            // Include additional supervised user info
+            event.installId = response.userId;
+            event.mostRecentApprovalDate = response.mostRecentApprovalDate;
+        } else {
+            // Unknown or empty status
+            event.userStatus = response.userStatus.toLowerCase();
+        }
+        return event;
+    }
+
+    /**
+     * Returns the status key newAgeRangeEvent(response) would have, without building the event
+     */
+    static String statusKey(AgeDataResponse response) {
+        if (!response.isSuccess()) {
+            return AgeRangeEvent.statusKey(null, null);
+        } else if (response.isVerified()) {
+            return AgeRangeEvent.statusKey("verified", null);
+        } else if (response.isSupervised()) {
+            return AgeRangeEvent.statusKey("supervised", response.mostRecentApprovalDate);
+        }
+        return AgeRangeEvent.statusKey(response.userStatus.toLowerCase(), null);
+    }
+
+    /**
+     * Get a snapshot of the plugin's request counts, latency percentiles, cache and event queue statistics
+     * Returns: table
+     */
+    @SuppressWarnings("WeakerAccess")
+    public int getStats(LuaState L) {
+        fStats.push(L, fEventDispatcher);
+        return 1;
+    }
+
+    /**
+     * Get the last known age range straight from memory, without a lookup, e.g. for per-frame gating
+     * Returns: table with the ageRangeEvent result fields plus isStale and dataAgeMs, or nil if there is no result yet
+     */
+    @SuppressWarnings("WeakerAccess")
+    public int getCachedAgeRange(LuaState L) {
+        SnapshotStore.Snapshot snapshot = fSnapshot;
+        if (snapshot == null) {
+            L.pushNil();
+            return 1;
+        }
+
+        // The snapshot's fields are pushed directly, so nothing is allocated besides the table
+        AgeRangeEvent result = snapshot.result;
+        L.newTable(0, result.getFieldCount());
+        result.pushFields(L);
+        // Stale until fetched in this process, and then once older than the cache TTL, if there is one;
+        // the cache itself is no guide, as it is empty whenever caching is disabled
+        long ageMs = snapshot.getAgeMs();
+        long ttlMs = sResultCache.getTtl();
+        LuaEvent.setField(L, "isStale", snapshot.isRestored || (ttlMs > 0 && ageMs >= ttlMs));
+        L.pushNumber(ageMs);
+        L.setField(-2, "dataAgeMs");
+        return 1;
+    }
+
+    /**
+     * Check a feature against the policies given to init() and the last known age range
+     * Parameters: featureId (string)
+     * Returns: true if the feature may be used; false for features without a rule
+     */
+    @SuppressWarnings("WeakerAccess")
+    public int canUse(LuaState L) {
+        String featureId = L.checkString(1);
+        AgePolicy policy = fPolicy;
+        SnapshotStore.Snapshot snapshot = fSnapshot;
+        L.pushBoolean(policy != null && policy.canUse(featureId, snapshot != null ? snapshot.result : null));
+        return 1;
+    }
+
+    /**
+     * Check several features at once
+     * Parameters: featureIds (table) - array of feature IDs
+     * Returns: table mapping each feature ID to true or false
+     */
+    @SuppressWarnings("WeakerAccess")
+    public int canUseMany(LuaState L) {
+        int featureIdsIndex = 1;
+        if (!L.isTable(featureIdsIndex)) {
+            L.newTable();
+            return 1;
+        }
+
+        AgePolicy policy = fPolicy;
+        SnapshotStore.Snapshot snapshot = fSnapshot;
+        AgeRangeEvent result = snapshot != null ? snapshot.result : null;
+
+        int count = L.length(featureIdsIndex);
+        L.newTable(0, count);
+        int resultIndex = L.getTop();
+        for (int i = 1; i <= count; i++) {
+            L.rawGet(featureIdsIndex, i);
+            if (L.isString(-1)) {
+                String featureId = L.toString(-1);
+                L.pushBoolean(policy != null && policy.canUse(featureId, result));
+                L.setField(resultIndex, featureId);
+            }
+            L.pop(1);
+        }
+        return 1;
+    }
+
+    /**
+     * Abandon an in-flight request so its listener or callback is never called
+     * Parameters: request handle (number) returned by the request function
+     * Returns: true if the request was still in flight
+     */
+    @SuppressWarnings("WeakerAccess")
+    public int cancelRequest(LuaState L) {
+        int requestId = L.checkInteger(1);
+        RequestTracker.Request request = fRequestTracker.cancel(requestId);
+        if (request != null) {
+            fCallbackPool.release(L, request.callback);
+        }
+        L.pushBoolean(request != null);
+        return 1;
     }
 
     /**
      * Request permission for significant app update
      * NOTE: On Amazon, significant changes must be submitted through the Amazon Developer Console
      * This function is provided for API compatibility
-     * Parameters: description (string)
+     * Parameters: description (string), callback (function, optional)
+     * Returns: request handle (number) that matches the event's requestId
      */
     @SuppressWarnings("WeakerAccess")
     public int requestSignificantUpdatePermission(LuaState L) {
+        long startNanos = System.nanoTime();
+        fStats.requestSignificantUpdatePermission.recordCall();
+
         String description = L.checkString(1);
 
-        Map<String, Object> eventData = new HashMap<>();
-        eventData.put("isError", false);
-        eventData.put("description", description);
-        eventData.put("platform", "android");
-        eventData.put("store", "amazon");
-        eventData.put("message", "On Amazon, significant changes must be submitted through the Amazon Developer Console. " +
-                "This API is for compatibility only.");
-        dispatchUpdateEvent(eventData);
+        int callback = acquireCallback(L, 2);
+        RequestTracker.Request request = fRequestTracker.start(0, callback, null);
+        L.pushInteger(request.id);
 
-        return 0;
+        fRequestTracker.finish(request);
+        UpdateEvent event = new UpdateEvent();
+        event.isError = false;
+        event.description = description;
+        event.platform = PLATFORM;
+        event.store = STORE;
+        event.message = "On Amazon, significant changes must be submitted through the Amazon Developer Console. " +
+                "This API is for compatibility only.";
+        dispatchEvent(event, fStats.requestSignificantUpdatePermission, startNanos, request);
+
+        return 1;
     }
 
     /**
      * Request communication permission
      * Uses Amazon's GetUserAgeData API to check if the user is supervised
-     * Parameters: handle (string), handleKind (string)
+     * Parameters: handle (string), handleKind (string), callback (function, optional)
+     * Returns: request handle (number) that matches the event's requestId
      */
     @SuppressWarnings("WeakerAccess")
     public int requestCommunicationPermission(LuaState L) {
+        long startNanos = System.nanoTime();
+        fStats.requestCommunicationPermission.recordCall();
+
         String handle = L.checkString(1);
         String handleKind = L.checkString(2);
 
-        Map<String, Object> eventData = new HashMap<>();
-        eventData.put("handle", handle);
-        eventData.put("handleKind", handleKind);
-        eventData.put("platform", "android");
-        eventData.put("store", "amazon");
-        eventData.put("message", "Amazon Age Data API doesn't have direct communication approval. " +
-                "Check user supervision status instead.");
+        int callback = acquireCallback(L, 3);
+        RequestTracker.Request request = fRequestTracker.start(0, callback, null);
+        L.pushInteger(request.id);
+
+        // Repeat checks for a handle are answered in memory until the status changes
+        HandleDecisionCache.Decision decision = sHandleCache.get(handle, handleKind);
+        if (decision != null) {
+            fRequestTracker.finish(request);
+            fStats.handleCacheHits.incrementAndGet();
+            CommunicationEvent event = newCommunicationEvent(handle, handleKind);
+            event.isError = false;
+            event.isSupervised = decision.isSupervised;
+            event.userStatus = decision.userStatus;
+            event.requiresParentalApproval = decision.requiresParentalApproval;
+            dispatchEvent(event, fStats.requestCommunicationPermission, startNanos, request);
+            return 1;
+        }
 
-        CoronaActivity activity = CoronaEnvironment.getCoronaActivity();
+        CoronaActivity activity = fEnvironment.getCoronaActivity();
         if (activity == null) {
-            eventData.put("isError", true);
-            eventData.put("errorMessage", "Activity not available");
-            dispatchCommunicationEvent(eventData);
-            return 0;
+            fRequestTracker.finish(request);
+            CommunicationEvent event = newCommunicationEvent(handle, handleKind);
+            event.isError = true;
+            event.errorMessage = "Activity not available";
+            dispatchEvent(event, fStats.requestCommunicationPermission, startNanos, request);
+            return 1;
         }
 
-        activity.runOnUiThread(() -> {
-            Cursor cursor = null;
+        queryAgeData(activity, (jsonResponse, error) -> {
+            if (!fRequestTracker.finish(request)) {
+                return;
+            }
+
+            CommunicationEvent event = newCommunicationEvent(handle, handleKind);
             try {
-                cursor = activity.getContentResolver().query(
-                        AMAZON_AGE_DATA_URI,
-                        null, null, null, null);
-
-                if (cursor == null || !cursor.moveToFirst()) {
-                    Map<String, Object> errorData = new HashMap<>(eventData);
-                    errorData.put("isError", true);
-                    errorData.put("errorMessage", "Amazon Age Data API not available");
-                    dispatchCommunicationEvent(errorData);
-                    return;
+                if (error != null) {
+                    throw error;
                 }
 
-                int dataColumnIndex = cursor.getColumnIndex("data");
-                if (dataColumnIndex == -1) {
-                    dataColumnIndex = 0;
+                if (jsonResponse == null) {
+                    event.isError = true;
+                    event.errorMessage = "Amazon Age Data API not available";
+                    dispatchEvent(event, fStats.requestCommunicationPermission, startNanos, request);
+                    return;
                 }
-                String jsonResponse = cursor.getString(dataColumnIndex);
 
-                JSONObject json = new JSONObject(jsonResponse);
-                String responseStatus = json.optString("responseStatus", "");
-                String userStatus = json.optString("userStatus", "");
+                AgeDataResponse response = AgeDataResponse.parse(jsonResponse);
 
-                Map<String, Object> resultData = new HashMap<>(eventData);
-
-                if ("SUCCESS".equals(responseStatus)) {
-                    if ("SUPERVISED".equals(userStatus)) {
-                        resultData.put("isError", false);
-                        resultData.put("isSupervised", true);
-                        resultData.put("userStatus", "supervised");
-                        resultData.put("requiresParentalApproval", true);
+                if (response.isSuccess()) {
+                    event.isError = false;
+                    if (response.isSupervised()) {
+                        event.isSupervised = true;
+                        event.userStatus = "supervised";
+                        event.requiresParentalApproval = true;
                     } else {
-                        resultData.put("isError", false);
-                        resultData.put("isSupervised", false);
-                        resultData.put("requiresParentalApproval", false);
+                        event.isSupervised = false;
+                        event.requiresParentalApproval = false;
                     }
+                    sHandleCache.put(handle, handleKind, statusKey(response),
+                            new HandleDecisionCache.Decision(event.isSupervised, event.userStatus,
+                                    event.requiresParentalApproval));
                 } else {
-                    resultData.put("isError", true);
-                    resultData.put("errorMessage", "Amazon Age Data API returned status: " + responseStatus);
+                    event.isError = true;
+                    event.errorMessage = "Amazon Age Data API returned status: " + response.responseStatus;
                 }
 
-                dispatchCommunicationEvent(resultData);
+                dispatchEvent(event, fStats.requestCommunicationPermission, startNanos, request);
 
             } catch (Exception e) {
-                Map<String, Object> errorData = new HashMap<>(eventData);
-                errorData.put("isError", true);
-                errorData.put("errorMessage", "Amazon Age Data API error: " + e.getMessage());
-                dispatchCommunicationEvent(errorData);
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+                event.isError = true;
+                event.errorMessage = "Amazon Age Data API error: " + e.getMessage();
+                dispatchEvent(event, fStats.requestCommunicationPermission, startNanos, request);
             }
         });
 
+        return 1;
+    }
+
+    /**
+     * Stop the age data observation started by startListeningForCommunicationResponses()
+     */
+    @SuppressWarnings({"WeakerAccess", "SameReturnValue"})
+    public int stopListeningForCommunicationResponses(LuaState L) {
+        fListening = false;
+        unregisterAgeDataObserver();
+        synchronized (fAgeDataObserver) {
+            fLastObserved = null;
+        }
         return 0;
     }
 
+    /**
+     * Start receiving change notifications from the Amazon age data provider
+     */
+    private void registerAgeDataObserver(Context context) {
+        synchronized (fAgeDataObserver) {
+            if (fObservedResolver != null) {
+                return;
+            }
+            fObservedResolver = context.getContentResolver();
+            // Descendant URIs are included so changes to related age data paths are observed too
+            fObservedResolver.registerContentObserver(AMAZON_AGE_DATA_URI, true, fAgeDataObserver);
+        }
+    }
+
+    /**
+     * Stop receiving change notifications from the Amazon age data provider
+     */
+    private void unregisterAgeDataObserver() {
+        synchronized (fAgeDataObserver) {
+            if (fObservedResolver != null) {
+                fObservedResolver.unregisterContentObserver(fAgeDataObserver);
+                fObservedResolver = null;
+            }
+        }
+    }
+
+    /**
+     * Re-query the provider, bypassing the cache, and report the result if the status changed
+     */
+    private void checkForAgeDataChange() {
+        if (!fListening) {
+            return;
+        }
+        CoronaActivity activity = fEnvironment.getCoronaActivity();
+        if (activity == null) {
+            return;
+        }
+        sResultCache.invalidate();
+        queryAgeData(activity, this::onObservedAgeData);
+    }
+
+    /**
+     * Compare a provider response with the last observed one and dispatch a communicationEvent
+     * only if the status actually changed. The first response just becomes the baseline.
+     */
+    private void onObservedAgeData(String jsonResponse, Exception error) {
+        if (error != null || jsonResponse == null || !fListening) {
+            return;
+        }
+
+        AgeDataResponse response;
+        try {
+            response = AgeDataResponse.parse(jsonResponse);
+        } catch (IOException e) {
+            return;
+        }
+
+        synchronized (fAgeDataObserver) {
+            AgeDataResponse last = fLastObserved;
+            fLastObserved = response;
+            if (last == null || last.hasSameStatus(response)) {
+                return;
+            }
+        }
+
+        CommunicationEvent event = new CommunicationEvent();
+        event.platform = PLATFORM;
+        event.store = STORE;
+        if (response.isSuccess()) {
+            event.isError = false;
+            event.message = "Amazon age data changed";
+            event.isSupervised = response.isSupervised();
+            event.userStatus = response.userStatus.toLowerCase();
+            event.requiresParentalApproval = response.isSupervised();
+        } else {
+            event.isError = true;
+            event.errorMessage = "Amazon Age Data API returned status: " + response.responseStatus;
+        }
+        dispatchEvent(event);
+    }
+
+    /**
+     * Request communication permission for many handles at once
+     * Uses one GetUserAgeData query for every handle, since the answer depends only on supervision status.
+     * Results arrive as communicationBatchEvents, each reporting up to chunkSize handles in its results array.
+     * Parameters: handles (table) - array of handle strings, handleKind (string), options (table, optional),
+     *             callback (function, optional)
+     * Options: chunkSize (number) - most handles reported per event
+     * Returns: request handle (number) that matches each event's requestId
+     */
+    @SuppressWarnings("WeakerAccess")
+    public int requestCommunicationPermissions(LuaState L) {
+        long startNanos = System.nanoTime();
+        fStats.requestCommunicationPermissions.recordCall();
+
+        int handlesIndex = 1;
+        L.checkType(handlesIndex, LuaType.TABLE);
+        int count = L.length(handlesIndex);
+        String[] handles = new String[count];
+        for (int i = 0; i < count; i++) {
+            L.rawGet(handlesIndex, i + 1);
+            handles[i] = L.isString(-1) ? L.toString(-1) : null;
+            L.pop(1);
+            L.checkArg(handlesIndex, handles[i] != null, "array of handle strings expected");
+        }
+        String handleKind = L.checkString(2);
+
+        int optionsIndex = 3;
+        int chunkSize = DEFAULT_BATCH_CHUNK_SIZE;
+        if (L.isTable(optionsIndex)) {
+            L.getField(optionsIndex, "chunkSize");
+            if (L.isNumber(-1)) {
+                chunkSize = Math.max(1, L.toInteger(-1));
+            }
+            L.pop(1);
+        }
+        int finalChunkSize = chunkSize;
+
+        int callback = acquireCallback(L, 3);
+        RequestTracker.Request request = fRequestTracker.start(0, callback, null);
+        L.pushInteger(request.id);
+
+        CommunicationBatchEvent template = new CommunicationBatchEvent();
+        template.handles = handles;
+        template.handleKind = handleKind;
+        template.platform = PLATFORM;
+        template.store = STORE;
+
+        // Entries are dropped whenever the status changes, so cached decisions never disagree
+        HandleDecisionCache.Decision decision = count > 0 ? sHandleCache.get(handles[0], handleKind) : null;
+        for (int i = 1; i < count && decision != null; i++) {
+            if (sHandleCache.get(handles[i], handleKind) == null) {
+                decision = null;
+            }
+        }
+        if (decision != null) {
+            fRequestTracker.finish(request);
+            fStats.handleCacheHits.incrementAndGet();
+            template.isError = false;
+            template.isSupervised = decision.isSupervised;
+            template.userStatus = decision.userStatus;
+            template.requiresParentalApproval = decision.requiresParentalApproval;
+            dispatchCommunicationBatch(template, chunkSize, startNanos, request);
+            return 1;
+        }
+
+        CoronaActivity activity = fEnvironment.getCoronaActivity();
+        if (activity == null) {
+            fRequestTracker.finish(request);
+            template.isError = true;
+            template.errorMessage = "Activity not available";
+            dispatchCommunicationBatch(template, chunkSize, startNanos, request);
+            return 1;
+        }
+
+        queryAgeData(activity, (jsonResponse, error) -> {
+            if (!fRequestTracker.finish(request)) {
+                return;
+            }
+
+            try {
+                if (error != null) {
+                    throw error;
+                }
+
+                if (jsonResponse == null) {
+                    template.isError = true;
+                    template.errorMessage = "Amazon Age Data API not available";
+                } else {
+                    AgeDataResponse response = AgeDataResponse.parse(jsonResponse);
+                    if (response.isSuccess()) {
+                        template.isError = false;
+                        template.isSupervised = response.isSupervised();
+                        if (response.isSupervised()) {
+                            template.userStatus = "supervised";
+                        }
+                        template.requiresParentalApproval = response.isSupervised();
+                        rememberBatchDecisions(template, statusKey(response));
+                    } else {
+                        template.isError = true;
+                        template.errorMessage = "Amazon Age Data API returned status: " + response.responseStatus;
+                    }
+                }
+            } catch (Exception e) {
+                template.isError = true;
+                template.errorMessage = "Amazon Age Data API error: " + e.getMessage();
+            }
+            dispatchCommunicationBatch(template, finalChunkSize, startNanos, request);
+        });
+
+        return 1;
+    }
+
+    /**
+     * Cache the decision in a successful batch result for each of its handles
+     */
+    private static void rememberBatchDecisions(CommunicationBatchEvent template, String statusKey) {
+        HandleDecisionCache.Decision decision = new HandleDecisionCache.Decision(template.isSupervised,
+                template.userStatus, template.requiresParentalApproval);
+        for (String handle : template.handles) {
+            sHandleCache.put(handle, template.handleKind, statusKey, decision);
+        }
+    }
+
+    /**
+     * Dispatch a batch result as communicationBatchEvents of at most chunkSize handles each.
+     * The request's callback is kept until the last chunk, which alone is counted in the stats.
+     */
+    private void dispatchCommunicationBatch(CommunicationBatchEvent template, int chunkSize, long startNanos,
+                                            RequestTracker.Request request) {
+        int chunkCount = Math.max(1, (template.handles.length + chunkSize - 1) / chunkSize);
+        dispatchCommunicationChunk(template, chunkSize, 0, chunkCount, startNanos, request);
+    }
+
+    /**
+     * Dispatch one chunk of a batch result. Each chunk posts the next only once it has been delivered,
+     * so a long list reaches Lua one chunk per runtime tick rather than all in one frame.
+     */
+    private void dispatchCommunicationChunk(CommunicationBatchEvent template, int chunkSize, int chunk,
+                                            int chunkCount, long startNanos, RequestTracker.Request request) {
+        int count = template.handles.length;
+        int from = chunk * chunkSize;
+        CommunicationBatchEvent event = template.chunk(from, Math.min(count, from + chunkSize), chunk + 1, chunkCount);
+        if (chunk + 1 < chunkCount) {
+            event.keepsCallback = true;
+            event.next = () -> dispatchCommunicationChunk(template, chunkSize, chunk + 1, chunkCount, startNanos,
+                    request);
+            dispatchEvent(event, null, startNanos, request);
+        } else {
+            dispatchEvent(event, fStats.requestCommunicationPermissions, startNanos, request);
+        }
+    }
+
+    /**
+     * Creates the communicationEvent fields shared by every requestCommunicationPermission() result
+     */
+    static CommunicationEvent newCommunicationEvent(String handle, String handleKind) {
+        CommunicationEvent event = new CommunicationEvent();
+        event.handle = handle;
+        event.handleKind = handleKind;
+        event.platform = PLATFORM;
+        event.store = STORE;
+        event.message = "Amazon Age Data API doesn't have direct communication approval. " +
+                "Check user supervision status instead.";
+        return event;
+    }
+
     /**
      * Start listening for communication responses
-     * NOTE: Amazon doesn't have a real-time listener for parental responses
-     * This is a no-op function for API compatibility
+     * Amazon has no parental response callback, so the age data provider is observed instead and a
+     * communicationEvent is dispatched whenever the user's status changes. Observation pauses while
+     * the app is suspended and catches up on resume.
      */
     @SuppressWarnings({"WeakerAccess", "SameReturnValue"})
     public int startListeningForCommunicationResponses(LuaState L) {
-        Map<String, Object> eventData = new HashMap<>();
-        eventData.put("isError", false);
-        eventData.put("platform", "android");
-        eventData.put("store", "amazon");
-        eventData.put("message", "Amazon doesn't support real-time response listening. " +
-                "Call requestAgeRange() periodically to check for status updates.");
-        dispatchCommunicationEvent(eventData);
+        long startNanos = System.nanoTime();
+        fStats.startListeningForCommunicationResponses.recordCall();
+
+        CommunicationEvent event = new CommunicationEvent();
+        event.platform = PLATFORM;
+        event.store = STORE;
+
+        CoronaActivity activity = fEnvironment.getCoronaActivity();
+        if (activity == null) {
+            event.isError = true;
+            event.errorMessage = "Activity not available";
+            dispatchEvent(event, fStats.startListeningForCommunicationResponses, startNanos);
+            return 0;
+        }
+
+        fListening = true;
+        registerAgeDataObserver(activity.getApplicationContext());
+
+        // Record the current status so only later changes are reported
+        queryAgeData(activity, this::onObservedAgeData);
+
+        event.isError = false;
+        event.message = "Listening for Amazon age data changes. " +
+                "A communicationEvent is sent whenever the user's status changes.";
+        dispatchEvent(event, fStats.startListeningForCommunicationResponses, startNanos);
 
         return 0;
     }
@@ -507,4 +1374,108 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
             return startListeningForCommunicationResponses(L);
         }
     }
+
+    /** Implements the library.invalidateCache() Lua function. */
+    private class InvalidateCacheWrapper implements NamedJavaFunction {
+        @Override
+        public String getName() {
+            return "invalidateCache";
+        }
+
+        @Override
+        public int invoke(LuaState L) {
+            return invalidateCache(L);
+        }
+    }
+
+    /** Implements the library.cancelRequest() Lua function. */
+    private class CancelRequestWrapper implements NamedJavaFunction {
+        @Override
+        public String getName() {
+            return "cancelRequest";
+        }
+
+        @Override
+        public int invoke(LuaState L) {
+            return cancelRequest(L);
+        }
+    }
+
+    /** Implements the library.getStats() Lua function. */
+    private class GetStatsWrapper implements NamedJavaFunction {
+        @Override
+        public String getName() {
+            return "getStats";
+        }
+
+        @Override
+        public int invoke(LuaState L) {
+            return getStats(L);
+        }
+    }
+
+    /** Implements the library.stopListeningForCommunicationResponses() Lua function. */
+    private class StopListeningForCommunicationResponsesWrapper implements NamedJavaFunction {
+        @Override
+        public String getName() {
+            return "stopListeningForCommunicationResponses";
+        }
+
+        @Override
+        public int invoke(LuaState L) {
+            return stopListeningForCommunicationResponses(L);
+        }
+    }
+
+    /** Implements the library.getCachedAgeRange() Lua function. */
+    private class GetCachedAgeRangeWrapper implements NamedJavaFunction {
+        @Override
+        public String getName() {
+            return "getCachedAgeRange";
+        }
+
+        @Override
+        public int invoke(LuaState L) {
+            return getCachedAgeRange(L);
+        }
+    }
+
+    /** Implements the library.canUse() Lua function. */
+    private class CanUseWrapper implements NamedJavaFunction {
+        @Override
+        public String getName() {
+            return "canUse";
+        }
+
+        @Override
+        public int invoke(LuaState L) {
+            return canUse(L);
+        }
+    }
+
+    /** Implements the library.canUseMany() Lua function. */
+    private class CanUseManyWrapper implements NamedJavaFunction {
+        @Override
+        public String getName() {
+            return "canUseMany";
+        }
+
+        @Override
+        public int invoke(LuaState L) {
+            return canUseMany(L);
+        }
+    }
+
+    /** Implements the library.requestCommunicationPermissions() Lua function. */
+    private class RequestCommunicationPermissionsWrapper implements NamedJavaFunction {
+        @Override
+        public String getName() {
+            return "requestCommunicationPermissions";
+        }
+
+        @Override
+        public int invoke(LuaState L) {
+            return requestCommunicationPermissions(L);
+        }
+    }
 }
\ No newline at end of file
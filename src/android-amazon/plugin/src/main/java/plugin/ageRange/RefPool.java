@@ -0,0 +1,61 @@
+//
+//  RefPool.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import com.ansca.corona.CoronaLua;
+import com.naef.jnlua.LuaState;
+
+/**
+ * Recycles Lua registry slots used for per-request callbacks.
+ * <p>
+ * A released slot is kept by setting it to false rather than freeing it, so the registry
+ * never hands it out elsewhere and the next callback can be stored in it directly. Up to
+ * {@link #MAX_IDLE} slots are kept; beyond that they are freed as usual.
+ * Must only be used on the Lua thread.
+ */
+final class RefPool {
+    static final int MAX_IDLE = 32;
+
+    private final int[] fIdle = new int[MAX_IDLE];
+    private int fIdleCount;
+
+    /**
+     * Stores the value at the given stack index in the registry and returns its reference.
+     */
+    int acquire(LuaState L, int index) {
+        if (fIdleCount == 0) {
+            return CoronaLua.newRef(L, index);
+        }
+        int ref = fIdle[--fIdleCount];
+        L.pushValue(index);
+        L.rawSet(LuaState.REGISTRYINDEX, ref);
+        return ref;
+    }
+
+    /**
+     * Releases a reference returned by acquire(). REFNIL is ignored.
+     */
+    void release(LuaState L, int ref) {
+        if (ref == CoronaLua.REFNIL) {
+            return;
+        }
+        if (fIdleCount < MAX_IDLE) {
+            // Drop the callback but keep the slot occupied
+            L.pushBoolean(false);
+            L.rawSet(LuaState.REGISTRYINDEX, ref);
+            fIdle[fIdleCount++] = ref;
+        } else {
+            CoronaLua.deleteRef(L, ref);
+        }
+    }
+
+    /**
+     * Forgets every idle slot, e.g. when the Lua state that owns them is closing.
+     */
+    void clear() {
+        fIdleCount = 0;
+    }
+}
@@ -0,0 +1,100 @@
+//
+//  RequestTracker.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks in-flight Lua requests so they can time out or be cancelled.
+ * <p>
+ * Every request finishes exactly once: through its result, its timeout, or cancellation.
+ * Whoever calls {@link #finish(Request)} first and gets true owns delivering the outcome;
+ * everyone else must drop theirs. All methods are thread-safe.
+ */
+final class RequestTracker {
+    /** Called when a request times out. */
+    interface TimeoutHandler {
+        void onTimeout(Request request);
+    }
+
+    /** A single tracked request. The id is what Lua receives as the request's handle. */
+    static final class Request {
+        final int id;
+        /** Lua registry ID of the request's own callback, or CoronaLua.REFNIL to use the listener. */
+        final int callback;
+        private final AtomicBoolean fFinished = new AtomicBoolean();
+        private volatile ScheduledFuture<?> fTimeout;
+
+        private Request(int id, int callback) {
+            this.id = id;
+            this.callback = callback;
+        }
+    }
+
+    private final AtomicInteger fNextId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, Request> fRequests = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService fScheduler;
+
+    RequestTracker(ScheduledExecutorService scheduler) {
+        fScheduler = scheduler;
+    }
+
+    /**
+     * Starts tracking a new request whose events go to the given callback reference.
+     * If timeoutMs is positive and the request has not finished by then, onTimeout runs on the scheduler.
+     * onTimeout may be null if timeoutMs is not positive.
+     */
+    Request start(long timeoutMs, int callback, TimeoutHandler onTimeout) {
+        Request request = new Request(fNextId.incrementAndGet(), callback);
+        fRequests.put(request.id, request);
+        if (timeoutMs > 0) {
+            request.fTimeout = fScheduler.schedule(() -> {
+                if (finish(request)) {
+                    onTimeout.onTimeout(request);
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        return request;
+    }
+
+    /**
+     * Marks the request as finished. Returns false if it had already finished, timed out or been cancelled.
+     */
+    boolean finish(Request request) {
+        if (!request.fFinished.compareAndSet(false, true)) {
+            return false;
+        }
+        fRequests.remove(request.id);
+        ScheduledFuture<?> timeout = request.fTimeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        return true;
+    }
+
+    /**
+     * Abandons a request so its result is never delivered.
+     * Returns the request, so its callback can be released, or null if it was no longer in flight.
+     */
+    Request cancel(int id) {
+        Request request = fRequests.get(id);
+        return request != null && finish(request) ? request : null;
+    }
+
+    /**
+     * Abandons every request still in flight.
+     */
+    void cancelAll() {
+        for (Request request : fRequests.values()) {
+            finish(request);
+        }
+    }
+}
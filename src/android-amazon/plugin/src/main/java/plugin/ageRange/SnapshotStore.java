@@ -0,0 +1,149 @@
+//
+//  SnapshotStore.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Keeps the last successful age range result in a small binary file in app-private storage,
+ * so it can be served on the next cold start before the backend has answered.
+ * <p>
+ * The file holds a magic number, a format version, the time the result was saved and the
+ * result itself. It is read with a single read and replaced atomically through a temporary
+ * file. A missing, truncated or other-version file simply reads as no snapshot.
+ */
+final class SnapshotStore {
+    static final String FILE_NAME = "plugin.ageRange.snapshot";
+
+    private static final int MAGIC = 0x41524e47; // "ARNG"
+    private static final int VERSION = 1;
+
+    /** Larger than any valid snapshot; anything bigger is treated as corrupt. */
+    private static final int MAX_SIZE = 4096;
+
+    /** A saved result and when it was saved. */
+    static final class Snapshot {
+        final AgeRangeEvent result;
+        final long savedAtMillis;
+        /** True if the result was read back from the file rather than fetched by this process. */
+        final boolean isRestored;
+
+        Snapshot(AgeRangeEvent result, long savedAtMillis, boolean isRestored) {
+            this.result = result;
+            this.savedAtMillis = savedAtMillis;
+            this.isRestored = isRestored;
+        }
+
+        /** Returns how old the saved result is, in milliseconds. */
+        long getAgeMs() {
+            return Math.max(0, System.currentTimeMillis() - savedAtMillis);
+        }
+    }
+
+    private final File fFile;
+
+    SnapshotStore(File directory) {
+        fFile = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * Returns the saved snapshot, or null if there is none or it can't be read.
+     */
+    Snapshot load() {
+        long length = fFile.length();
+        if (length <= 0 || length > MAX_SIZE) {
+            return null;
+        }
+
+        byte[] bytes = new byte[(int) length];
+        try (FileInputStream in = new FileInputStream(fFile)) {
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    return null;
+                }
+                read += count;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        try {
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (data.readInt() != MAGIC || data.readUnsignedByte() != VERSION) {
+                return null;
+            }
+            long savedAtMillis = data.readLong();
+            return new Snapshot(AgeRangeEvent.readSnapshot(data), savedAtMillis, true);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Saves a result, replacing any previous snapshot. Failures are ignored; the snapshot is only a hint.
+     */
+    void save(Snapshot snapshot) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        File temp = new File(fFile.getPath() + ".tmp");
+        try {
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeInt(MAGIC);
+            data.writeByte(VERSION);
+            data.writeLong(snapshot.savedAtMillis);
+            snapshot.result.writeSnapshot(data);
+            data.flush();
+
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                bytes.writeTo(out);
+                out.getFD().sync();
+            }
+            if (!temp.renameTo(fFile)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Removes the saved snapshot.
+     */
+    void delete() {
+        fFile.delete();
+    }
+
+    static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /** Writes an optional Boolean as -1 for null, 0 for false and 1 for true. */
+    static void writeBoolean(DataOutput out, Boolean value) throws IOException {
+        out.writeByte(value == null ? -1 : (value ? 1 : 0));
+    }
+
+    static Boolean readBoolean(DataInput in) throws IOException {
+        byte value = in.readByte();
+        return value < 0 ? null : value != 0;
+    }
+}
@@ -0,0 +1,37 @@
+//
+//  Tracer.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+/**
+ * Receives the begin and end of each phase of an age lookup.
+ * <p>
+ * Synchronous sections must be ended on the thread that began them. Asynchronous sections
+ * may end on any thread and are matched by name and cookie.
+ */
+interface Tracer {
+    /** Tracer that ignores every call, used while tracing is disabled. */
+    Tracer NONE = new Tracer() {
+        @Override
+        public void beginSection(String name) {}
+
+        @Override
+        public void endSection() {}
+
+        @Override
+        public void beginAsyncSection(String name, int cookie) {}
+
+        @Override
+        public void endAsyncSection(String name, int cookie) {}
+    };
+
+    void beginSection(String name);
+
+    void endSection();
+
+    void beginAsyncSection(String name, int cookie);
+
+    void endAsyncSection(String name, int cookie);
+}
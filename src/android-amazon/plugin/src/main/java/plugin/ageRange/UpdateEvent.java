@@ -0,0 +1,37 @@
+//
+//  UpdateEvent.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import com.naef.jnlua.LuaState;
+
+/**
+ * The significantUpdateEvent sent in response to requestSignificantUpdatePermission().
+ */
+final class UpdateEvent extends LuaEvent {
+    String description;
+    String platform;
+    String store;
+    String message;
+
+    @Override
+    String getName() {
+        return LuaLoader.UPDATE_EVENT;
+    }
+
+    @Override
+    int getFieldCount() {
+        return 5;
+    }
+
+    @Override
+    void pushFields(LuaState L) {
+        setField(L, "isError", isError);
+        setField(L, "description", description);
+        setField(L, "platform", platform);
+        setField(L, "store", store);
+        setField(L, "message", message);
+    }
+}
@@ -0,0 +1,64 @@
+//
+//  ParseBenchmark.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing GetUserAgeData responses from the Amazon content provider.
+ * <p>
+ * The provider usually returns the same response again, which the parser memoizes, so both the
+ * repeated case and the case where every response differs are measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    private static final String SUPERVISED = "{\"responseStatus\":\"SUCCESS\",\"userStatus\":\"SUPERVISED\","
+            + "\"ageLower\":13,\"ageUpper\":15,\"userId\":\"amzn1.account.AEXAMPLE0000000000000000000\","
+            + "\"mostRecentApprovalDate\":\"2025-01-01T00:00:00Z\",\"marketplace\":\"US\",\"extra\":{\"a\":[1,2,3]}}";
+    private static final String VERIFIED = "{\"responseStatus\":\"SUCCESS\",\"userStatus\":\"VERIFIED\","
+            + "\"ageLower\":18,\"ageUpper\":null,\"userId\":null,\"mostRecentApprovalDate\":null,"
+            + "\"marketplace\":\"US\",\"extra\":{\"a\":[1,2,3]}}";
+
+    private boolean fFlip;
+
+    @Benchmark
+    public Object parseRepeated() throws IOException {
+        return AgeDataResponse.parse(SUPERVISED);
+    }
+
+    @Benchmark
+    public Object parseChanged() throws IOException {
+        return AgeDataResponse.parse(next());
+    }
+
+    /** Parsing plus building the ageRangeEvent, as every fresh provider response does. */
+    @Benchmark
+    public Object parseAndBuildEvent() throws IOException {
+        return LuaLoader.newAgeRangeEvent(AgeDataResponse.parse(next()));
+    }
+
+    /** Alternates between two responses so every parse misses the memo. */
+    private String next() {
+        fFlip = !fFlip;
+        return fFlip ? SUPERVISED : VERIFIED;
+    }
+}
@@ -0,0 +1,126 @@
+//
+//  DispatchBenchmark.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import com.ansca.corona.CoronaLua;
+import com.google.android.play.agesignals.AgeSignalsResult;
+import com.google.android.play.agesignals.model.AgeSignalsVerificationStatus;
+import com.naef.jnlua.LuaState;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The three event paths end to end: build the event, post it to the {@link EventDispatcher},
+ * drain the queue on the "runtime" and call a Lua listener with the table.
+ * <p>
+ * Each operation posts batchSize events and drains them once, so scores are per drain.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    @Param({"1", "16"})
+    public int batchSize;
+
+    private final LuaState L = new LuaState();
+    private final PluginStats fStats = new PluginStats();
+    private int fListener;
+    private long fDelivered;
+
+    /** Leaves the drain to the benchmark thread, which plays the Corona runtime. */
+    private final EventDispatcher fDispatcher = new EventDispatcher(new EventDispatcher.Scheduler() {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public void scheduleDrain(EventDispatcher dispatcher) {}
+    });
+
+    private AgeSignalsResult fResult;
+
+    @Setup
+    public void setUp() {
+        // Reads a field, as a listener checking event.name would
+        L.pushJavaFunction(L -> {
+            L.getField(1, "isError");
+            fDelivered++;
+            return 0;
+        });
+        fListener = CoronaLua.newRef(L, -1);
+        L.pop(1);
+
+        fResult = AgeSignalsResult.builder()
+                .setUserStatus(AgeSignalsVerificationStatus.SUPERVISED)
+                .setAgeLower(13)
+                .setAgeUpper(15)
+                .setInstallId("e3b0c44298fc1c149afbf4c8996fb924")
+                .setMostRecentApprovalDate(new Date(1735689600000L))
+                .build();
+    }
+
+    @Benchmark
+    public long ageRangeEvent() {
+        for (int i = 0; i < batchSize; i++) {
+            post(LuaLoader.newAgeRangeEvent(fResult), fStats.requestAgeRange);
+        }
+        return drain();
+    }
+
+    @Benchmark
+    public long updateEvent() {
+        for (int i = 0; i < batchSize; i++) {
+            UpdateEvent event = LuaLoader.newUpdateEvent("New chat feature");
+            event.approved = false;
+            event.pending = true;
+            post(event, fStats.requestSignificantUpdatePermission);
+        }
+        return drain();
+    }
+
+    @Benchmark
+    public long communicationEvent() {
+        for (int i = 0; i < batchSize; i++) {
+            CommunicationEvent event = LuaLoader.newCommunicationEvent("friend-42", "username");
+            event.isSupervised = true;
+            event.userStatus = "supervised";
+            event.requiresParentalApproval = true;
+            post(event, fStats.requestCommunicationPermission);
+        }
+        return drain();
+    }
+
+    /** Mirrors LuaLoader.dispatchEvent() for an API call's result. */
+    private void post(LuaEvent event, PluginStats.ApiStats stats) {
+        event.listener = fListener;
+        event.stats = stats;
+        event.startNanos = System.nanoTime();
+        event.postedNanos = event.startNanos;
+        fDispatcher.post(event);
+    }
+
+    private long drain() {
+        fDispatcher.drain(L);
+        return fDelivered;
+    }
+}
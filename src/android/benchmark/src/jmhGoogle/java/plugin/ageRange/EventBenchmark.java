@@ -0,0 +1,108 @@
+//
+//  EventBenchmark.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import com.google.android.play.agesignals.AgeSignalsResult;
+import com.google.android.play.agesignals.model.AgeSignalsVerificationStatus;
+import com.naef.jnlua.LuaState;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building events from backend results, and marshalling them into Lua tables.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventBenchmark {
+    private final LuaState L = new LuaState();
+
+    private AgeSignalsResult fResult;
+    private AgeRangeEvent fAgeRangeEvent;
+    private UpdateEvent fUpdateEvent;
+    private CommunicationEvent fCommunicationEvent;
+    private CommunicationBatchEvent fBatchEvent;
+
+    @Setup
+    public void setUp() {
+        fResult = AgeSignalsResult.builder()
+                .setUserStatus(AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_PENDING)
+                .setAgeLower(13)
+                .setAgeUpper(15)
+                .setInstallId("e3b0c44298fc1c149afbf4c8996fb924")
+                .setMostRecentApprovalDate(new Date(1735689600000L))
+                .build();
+        fAgeRangeEvent = LuaLoader.newAgeRangeEvent(fResult);
+        fUpdateEvent = LuaLoader.newUpdateEvent("New chat feature");
+        fUpdateEvent.pending = true;
+        fCommunicationEvent = LuaLoader.newCommunicationEvent("friend-42", "username");
+        fCommunicationEvent.isSupervised = true;
+        fCommunicationEvent.userStatus = "supervised_approval_pending";
+        fCommunicationEvent.requiresParentalApproval = true;
+
+        String[] handles = new String[100];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = "friend-" + i;
+        }
+        CommunicationBatchEvent template = new CommunicationBatchEvent();
+        template.handles = handles;
+        template.handleKind = "username";
+        template.isSupervised = true;
+        template.requiresParentalApproval = true;
+        fBatchEvent = template.chunk(0, handles.length, 1, 1);
+    }
+
+    @Benchmark
+    public Object buildAgeRangeEvent() {
+        return LuaLoader.newAgeRangeEvent(fResult);
+    }
+
+    @Benchmark
+    public int pushAgeRangeEvent() {
+        fAgeRangeEvent.push(L);
+        return popTable();
+    }
+
+    @Benchmark
+    public int pushUpdateEvent() {
+        fUpdateEvent.push(L);
+        return popTable();
+    }
+
+    @Benchmark
+    public int pushCommunicationEvent() {
+        fCommunicationEvent.push(L);
+        return popTable();
+    }
+
+    /** One chunk of 100 handles. */
+    @Benchmark
+    public int pushCommunicationBatchEvent() {
+        fBatchEvent.push(L);
+        return popTable();
+    }
+
+    private int popTable() {
+        int top = L.getTop();
+        L.pop(1);
+        return top;
+    }
+}
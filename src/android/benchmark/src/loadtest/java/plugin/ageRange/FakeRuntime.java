@@ -0,0 +1,170 @@
+//
+//  FakeRuntime.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import android.content.Context;
+
+import com.ansca.corona.CoronaActivity;
+import com.ansca.corona.CoronaRuntime;
+import com.ansca.corona.CoronaRuntimeTask;
+import com.ansca.corona.CoronaRuntimeTaskDispatcher;
+import com.naef.jnlua.LuaState;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A Corona runtime without a device: one thread that owns the Lua state and, once per frame,
+ * runs every task sent to it through {@link #send(CoronaRuntimeTask)}.
+ * <p>
+ * It stands in for the activity's runtime task dispatcher, and supplies the plugin's
+ * {@link LuaLoader.Environment} and the {@link EventDispatcher.Scheduler} for its events.
+ */
+final class FakeRuntime extends CoronaRuntimeTaskDispatcher
+        implements LuaLoader.Environment, EventDispatcher.Scheduler {
+    private final CoronaRuntime fRuntime;
+    private final long fFrameNanos;
+    private final LinkedBlockingQueue<CoronaRuntimeTask> fTasks = new LinkedBlockingQueue<>();
+    private final CoronaActivity fActivity;
+    private final Context fContext;
+
+    /** Stands in for the UI thread, for runs with useMainThread. */
+    private final ExecutorService fUiThread = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "fake-ui");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Thread fThread = new Thread(this::run, "fake-corona-runtime");
+    private volatile boolean fRunning;
+    private volatile long fTaskErrors;
+
+    FakeRuntime(LuaState L, long frameMs, Context context) {
+        this(new CoronaRuntime(L), frameMs, context);
+    }
+
+    private FakeRuntime(CoronaRuntime runtime, long frameMs, Context context) {
+        super(runtime);
+        fRuntime = runtime;
+        fFrameNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, frameMs));
+        fContext = context;
+        fActivity = new CoronaActivity(this) {
+            @Override
+            public Context getApplicationContext() {
+                return fContext;
+            }
+
+            @Override
+            public void runOnUiThread(Runnable action) {
+                fUiThread.execute(action);
+            }
+        };
+        fThread.setDaemon(true);
+    }
+
+    void start() {
+        fRunning = true;
+        fThread.start();
+    }
+
+    void stop() throws InterruptedException {
+        fRunning = false;
+        fThread.join();
+        fUiThread.shutdownNow();
+    }
+
+    /** Runs task on the runtime thread and waits for it to finish. */
+    void runAndWait(CoronaRuntimeTask task) throws InterruptedException {
+        Object done = new Object();
+        boolean[] finished = new boolean[1];
+        send(runtime -> {
+            try {
+                task.executeUsing(runtime);
+            } finally {
+                synchronized (done) {
+                    finished[0] = true;
+                    done.notifyAll();
+                }
+            }
+        });
+        synchronized (done) {
+            while (!finished[0]) {
+                done.wait();
+            }
+        }
+    }
+
+    /** Returns the number of tasks that threw. */
+    long getTaskErrors() {
+        return fTaskErrors;
+    }
+
+    // ---- CoronaRuntimeTaskDispatcher
+
+    @Override
+    public boolean isRuntimeAvailable() {
+        return fRunning;
+    }
+
+    @Override
+    public void send(CoronaRuntimeTask task) {
+        fTasks.add(task);
+    }
+
+    // ---- LuaLoader.Environment
+
+    @Override
+    public CoronaActivity getCoronaActivity() {
+        return fRunning ? fActivity : null;
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return fContext;
+    }
+
+    // ---- EventDispatcher.Scheduler
+
+    @Override
+    public boolean isAvailable() {
+        return fRunning;
+    }
+
+    @Override
+    public void scheduleDrain(EventDispatcher dispatcher) {
+        send(runtime -> dispatcher.drain(runtime.getLuaState()));
+    }
+
+    private void run() {
+        ArrayList<CoronaRuntimeTask> frame = new ArrayList<>();
+        long nextFrame = System.nanoTime();
+        while (fRunning) {
+            nextFrame += fFrameNanos;
+            long wait = nextFrame - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            } else {
+                // Running behind; don't try to catch up on missed frames
+                nextFrame = System.nanoTime();
+            }
+
+            // Tasks sent while this frame runs wait for the next one, as on a device
+            fTasks.drainTo(frame);
+            for (CoronaRuntimeTask task : frame) {
+                try {
+                    task.executeUsing(fRuntime);
+                } catch (RuntimeException e) {
+                    fTaskErrors++;
+                }
+            }
+            frame.clear();
+        }
+    }
+}
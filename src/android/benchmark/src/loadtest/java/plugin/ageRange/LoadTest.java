@@ -0,0 +1,419 @@
+//
+//  LoadTest.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import com.naef.jnlua.JavaFunction;
+import com.naef.jnlua.LuaState;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Device-free load test: fires many concurrent requestAgeRange() and requestCommunicationPermission()
+ * calls at a LuaLoader running on a {@link FakeRuntime}, against the flavour's fake backend, and
+ * reports throughput, tail latency and lost or duplicated events.
+ * <p>
+ * Every call passes its own callback, so each event can be matched to the request ID the call
+ * returned. A request whose event never arrives is lost; a second event for a request is a duplicate.
+ * Latency runs from the Lua call to its callback, both on the runtime thread, so it includes the
+ * frames spent waiting for the runtime as it would in a game.
+ * <p>
+ * A request given a timeout must end in either its result or a timeout event by then. A result
+ * delivered more than {@link #lateGraceMs()} after the timeout, with no timeout event, counts as late.
+ * <p>
+ * Options, as --name=value arguments:
+ * <pre>
+ *   scenario            load, or stall for a backend slower than the request timeout; the options
+ *                       after it override its settings (load)
+ *   requests            total calls to make (5000)
+ *   producers           threads queueing calls concurrently (8)
+ *   rate                calls per second across all producers; 0 for as fast as they can queue them (0)
+ *   communicationShare  fraction of calls that are requestCommunicationPermission() (0.3)
+ *   handles             distinct handles those calls use (200)
+ *   latencyMs           backend latency (40)
+ *   jitterMs            extra random backend latency, up to this much (40)
+ *   errorRate           fraction of backend calls that fail (0.05)
+ *   frameMs             runtime frame interval (16)
+ *   cacheTtlMs          plugin result and handle cache TTL; 0 sends every lookup to the backend (0)
+ *   timeoutMs           per-request timeout passed to requestAgeRange(); 0 for none (0)
+ *   waitMs              how long to wait for outstanding events after the last call (30000)
+ * </pre>
+ * The stall scenario makes 200 requestAgeRange() calls with a 100 ms timeout against a backend that
+ * takes 1000 ms, so every request should time out.
+ * <p>
+ * Exits with status 1 if any event was lost, duplicated or late.
+ */
+public final class LoadTest {
+    private static final String LIBRARY = "plugin.ageRange";
+
+    /** Run settings, parsed from the command line. */
+    static final class Config {
+        String scenario = "load";
+        int requests = 5000;
+        int producers = 8;
+        double rate = 0;
+        double communicationShare = 0.3;
+        int handles = 200;
+        long latencyMs = 40;
+        long jitterMs = 40;
+        double errorRate = 0.05;
+        long frameMs = 16;
+        long cacheTtlMs = 0;
+        long timeoutMs = 0;
+        long waitMs = 30000;
+
+        static Config parse(String[] args) {
+            Config config = new Config();
+            for (String arg : args) {
+                if (arg.isEmpty()) {
+                    continue;
+                }
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0) {
+                    throw new IllegalArgumentException("expected --name=value, got " + arg);
+                }
+                String name = arg.substring(2, eq);
+                String value = arg.substring(eq + 1);
+                switch (name) {
+                    case "scenario": config.applyScenario(value); break;
+                    case "requests": config.requests = Integer.parseInt(value); break;
+                    case "producers": config.producers = Math.max(1, Integer.parseInt(value)); break;
+                    case "rate": config.rate = Double.parseDouble(value); break;
+                    case "communicationShare": config.communicationShare = Double.parseDouble(value); break;
+                    case "handles": config.handles = Math.max(1, Integer.parseInt(value)); break;
+                    case "latencyMs": config.latencyMs = Long.parseLong(value); break;
+                    case "jitterMs": config.jitterMs = Long.parseLong(value); break;
+                    case "errorRate": config.errorRate = Double.parseDouble(value); break;
+                    case "frameMs": config.frameMs = Long.parseLong(value); break;
+                    case "cacheTtlMs": config.cacheTtlMs = Long.parseLong(value); break;
+                    case "timeoutMs": config.timeoutMs = Long.parseLong(value); break;
+                    case "waitMs": config.waitMs = Long.parseLong(value); break;
+                    default: throw new IllegalArgumentException("unknown option --" + name);
+                }
+            }
+            return config;
+        }
+
+        void applyScenario(String scenario) {
+            switch (scenario) {
+                case "load":
+                    break;
+                case "stall":
+                    requests = 200;
+                    communicationShare = 0;
+                    latencyMs = 1000;
+                    jitterMs = 0;
+                    errorRate = 0;
+                    timeoutMs = 100;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown scenario " + scenario);
+            }
+            this.scenario = scenario;
+        }
+
+        /** Returns a random backend latency in milliseconds. */
+        long nextLatencyMs() {
+            return latencyMs + (jitterMs > 0 ? ThreadLocalRandom.current().nextLong(jitterMs + 1) : 0);
+        }
+
+        /** Returns true if the next backend call should fail. */
+        boolean nextIsError() {
+            return ThreadLocalRandom.current().nextDouble() < errorRate;
+        }
+    }
+
+    /** Latencies of one kind of request, in nanoseconds. */
+    private static final class Latencies {
+        private long[] fValues = new long[1024];
+        private int fCount;
+
+        void add(long nanos) {
+            if (fCount == fValues.length) {
+                fValues = Arrays.copyOf(fValues, fCount * 2);
+            }
+            fValues[fCount++] = nanos;
+        }
+
+        String summary() {
+            if (fCount == 0) {
+                return "no events";
+            }
+            long[] sorted = Arrays.copyOf(fValues, fCount);
+            Arrays.sort(sorted);
+            return String.format(Locale.ROOT, "p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f ms",
+                    ms(percentile(sorted, 0.50)), ms(percentile(sorted, 0.90)), ms(percentile(sorted, 0.99)),
+                    ms(percentile(sorted, 0.999)), ms(sorted[sorted.length - 1]));
+        }
+
+        private static long percentile(long[] sorted, double p) {
+            return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)];
+        }
+
+        private static double ms(long nanos) {
+            return nanos / 1e6;
+        }
+    }
+
+    // The rest is only touched on the runtime thread, like the Lua state itself
+
+    private final Config fConfig;
+    private final LuaState L = new LuaState();
+    private final FakeRuntime fRuntime;
+
+    /** Call time of each request still waiting for its event, by request ID. */
+    private final Map<Integer, Long> fPending = new HashMap<>();
+    private final Map<Integer, String> fKinds = new HashMap<>();
+    private final Set<Integer> fCompleted = new HashSet<>();
+    private final Latencies fAgeRangeLatencies = new Latencies();
+    private final Latencies fCommunicationLatencies = new Latencies();
+    private int fErrors;
+    private int fTimeouts;
+    private int fDuplicates;
+    private int fLate;
+    private int fUnexpected;
+    private int fListenerEvents;
+    private long fFirstCallNanos;
+    private long fLastEventNanos;
+
+    /** Events delivered for a request that was still pending; read from the main thread. */
+    private final AtomicInteger fDelivered = new AtomicInteger();
+
+    private final JavaFunction fCallback = L -> {
+        onEvent(L);
+        return 0;
+    };
+
+    private final JavaFunction fListener = L -> {
+        fListenerEvents++;
+        return 0;
+    };
+
+    private LoadTest(Config config) {
+        fConfig = config;
+        fRuntime = new FakeRuntime(L, config.frameMs, Backend.newContext(config));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = Config.parse(args);
+        int exitCode = new LoadTest(config).run();
+        System.exit(exitCode);
+    }
+
+    private int run() throws InterruptedException {
+        LuaLoader loader = new LuaLoader(new EventDispatcher(fRuntime), fRuntime);
+        Backend.install(loader, fConfig);
+        fRuntime.start();
+        fRuntime.runAndWait(runtime -> load(loader));
+
+        // Producers queue their calls concurrently; each call runs on the runtime thread
+        CountDownLatch issued = new CountDownLatch(fConfig.requests);
+        AtomicInteger next = new AtomicInteger();
+        long startNanos = System.nanoTime();
+        long intervalNanos = fConfig.rate > 0 ? (long) (1e9 / fConfig.rate) : 0;
+        Thread[] producers = new Thread[fConfig.producers];
+        for (int p = 0; p < producers.length; p++) {
+            producers[p] = new Thread(() -> {
+                int n;
+                while ((n = next.getAndIncrement()) < fConfig.requests) {
+                    if (intervalNanos > 0) {
+                        // Call n is due n intervals after the start, whichever producer takes it
+                        long wait = startNanos + n * intervalNanos - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                    boolean communication = ThreadLocalRandom.current().nextDouble() < fConfig.communicationShare;
+                    String handle = "friend-" + (n % fConfig.handles);
+                    fRuntime.send(runtime -> {
+                        try {
+                            if (communication) {
+                                requestCommunicationPermission(handle);
+                            } else {
+                                requestAgeRange();
+                            }
+                        } finally {
+                            issued.countDown();
+                        }
+                    });
+                }
+            }, "producer-" + p);
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        issued.await();
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(fConfig.waitMs);
+        while (fDelivered.get() < fConfig.requests && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        // Give any duplicates a few frames to show up
+        Thread.sleep(Math.max(100, fConfig.frameMs * 5));
+
+        StringBuilder stats = new StringBuilder();
+        fRuntime.runAndWait(runtime -> readStats(stats));
+        fRuntime.stop();
+        return report(stats.toString());
+    }
+
+    /** require() the plugin and call init() with a listener and the run's options. */
+    private void load(LuaLoader loader) {
+        L.pushJavaFunction(loader);
+        L.pushString(LIBRARY);
+        L.call(1, 1);
+        L.getField(-1, "init");
+        L.pushJavaFunction(fListener);
+        L.newTable();
+        L.pushNumber(fConfig.cacheTtlMs);
+        L.setField(-2, "cacheTtlMs");
+        L.pushNumber(fConfig.cacheTtlMs);
+        L.setField(-2, "communicationCacheTtlMs");
+        L.call(2, 0);
+        L.pop(1);
+    }
+
+    private void requestAgeRange() {
+        startCall("requestAgeRange");
+        int argCount = 1;
+        if (fConfig.timeoutMs > 0) {
+            L.newTable();
+            L.pushNumber(fConfig.timeoutMs);
+            L.setField(-2, "timeoutMs");
+            argCount++;
+        }
+        L.pushJavaFunction(fCallback);
+        finishCall(argCount, "ageRange");
+    }
+
+    private void requestCommunicationPermission(String handle) {
+        startCall("requestCommunicationPermission");
+        L.pushString(handle);
+        L.pushString("username");
+        L.pushJavaFunction(fCallback);
+        finishCall(3, "communication");
+    }
+
+    private void startCall(String function) {
+        L.getGlobal(LIBRARY);
+        L.getField(-1, function);
+        L.remove(-2);
+    }
+
+    private void finishCall(int argCount, String kind) {
+        long now = System.nanoTime();
+        if (fFirstCallNanos == 0) {
+            fFirstCallNanos = now;
+        }
+        L.call(argCount, 1);
+        int requestId = L.toInteger(-1);
+        L.pop(1);
+        // The callback can't run before the call returns; events are always delivered on a later drain
+        fPending.put(requestId, now);
+        fKinds.put(requestId, kind);
+    }
+
+    private void onEvent(LuaState L) {
+        long now = System.nanoTime();
+        L.getField(1, "requestId");
+        int requestId = L.toInteger(-1);
+        L.getField(1, "isError");
+        boolean isError = L.toBoolean(-1);
+        L.getField(1, "isTimeout");
+        boolean isTimeout = L.toBoolean(-1);
+        L.pop(3);
+
+        Long calledAt = fPending.remove(requestId);
+        if (calledAt == null) {
+            if (fCompleted.contains(requestId)) {
+                fDuplicates++;
+            } else {
+                fUnexpected++;
+            }
+            return;
+        }
+        fCompleted.add(requestId);
+        fLastEventNanos = now;
+        if (isTimeout) {
+            fTimeouts++;
+        } else if (isError) {
+            fErrors++;
+        }
+        boolean isCommunication = "communication".equals(fKinds.get(requestId));
+        long latencyNanos = now - calledAt;
+        // Only requestAgeRange() takes a timeout
+        if (!isCommunication && !isTimeout && fConfig.timeoutMs > 0
+                && latencyNanos > TimeUnit.MILLISECONDS.toNanos(fConfig.timeoutMs + lateGraceMs())) {
+            fLate++;
+        }
+        (isCommunication ? fCommunicationLatencies : fAgeRangeLatencies).add(latencyNanos);
+        fDelivered.incrementAndGet();
+    }
+
+    /**
+     * How long after its timeout a result may still arrive: the timeout event itself takes a frame or
+     * two to reach Lua, and a result that beat the timer can be just as slow.
+     */
+    private long lateGraceMs() {
+        return Math.max(100, fConfig.frameMs * 5);
+    }
+
+    /** Reads the plugin's own counters from getStats(). */
+    private void readStats(StringBuilder out) {
+        startCall("getStats");
+        L.call(0, 1);
+        L.getField(-1, "cache");
+        for (String name : new String[] {"hits", "misses", "coalesced", "retries"}) {
+            L.getField(-1, name);
+            out.append("cache.").append(name).append(' ').append(L.toInteger(-1)).append("  ");
+            L.pop(1);
+        }
+        L.pop(1);
+        L.getField(-1, "handleCacheHits");
+        out.append("handleCacheHits ").append(L.toInteger(-1)).append("  ");
+        L.getField(-2, "backend");
+        L.getField(-1, "calls");
+        out.append("backend.calls ").append(L.toInteger(-1));
+        L.pop(4);
+    }
+
+    private int report(String pluginStats) {
+        Config c = fConfig;
+        int completed = fCompleted.size();
+        int lost = fPending.size();
+        double seconds = (fLastEventNanos - fFirstCallNanos) / 1e9;
+
+        System.out.printf(Locale.ROOT, "Age Range load test, %s scenario, %s backend%n", c.scenario, Backend.NAME);
+        System.out.printf(Locale.ROOT, "  requests       %d from %d producers at %s, %.0f%% communication over %d handles%n",
+                c.requests, c.producers, c.rate > 0 ? String.format(Locale.ROOT, "%.0f/s", c.rate) : "full speed",
+                c.communicationShare * 100, c.handles);
+        System.out.printf(Locale.ROOT, "  backend        %d+%d ms latency, %.1f%% errors, %d calls, %d failed%n",
+                c.latencyMs, c.jitterMs, c.errorRate * 100, Backend.getCallCount(), Backend.getErrorCount());
+        System.out.printf(Locale.ROOT, "  runtime        %d ms frames, cacheTtlMs %d, timeoutMs %d%n",
+                c.frameMs, c.cacheTtlMs, c.timeoutMs);
+        System.out.printf(Locale.ROOT, "  throughput     %d events in %.3f s = %.0f requests/s%n",
+                completed, seconds, seconds > 0 ? completed / seconds : 0);
+        System.out.println("  ageRange       " + fAgeRangeLatencies.summary());
+        System.out.println("  communication  " + fCommunicationLatencies.summary());
+        System.out.printf(Locale.ROOT, "  results        %d errors, %d timeouts, %d listener events%n",
+                fErrors, fTimeouts, fListenerEvents);
+        System.out.println("  plugin         " + pluginStats);
+        System.out.printf(Locale.ROOT, "  lost %d  duplicated %d  unexpected %d  late %d  failed runtime tasks %d%n",
+                lost, fDuplicates, fUnexpected, fLate, fRuntime.getTaskErrors());
+
+        return lost > 0 || fDuplicates > 0 || fUnexpected > 0 || fLate > 0 ? 1 : 0;
+    }
+}
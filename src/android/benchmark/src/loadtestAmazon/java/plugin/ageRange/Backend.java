@@ -0,0 +1,40 @@
+//
+//  Backend.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import android.content.ContentResolver;
+import android.content.Context;
+
+/**
+ * Amazon flavour of the load test's backend: a {@link FakeAgeDataProvider} behind the application context.
+ */
+final class Backend {
+    static final String NAME = "Amazon age data";
+
+    private static FakeAgeDataProvider sProvider;
+
+    private Backend() {}
+
+    static Context newContext(LoadTest.Config config) {
+        sProvider = new FakeAgeDataProvider(config);
+        return new Context() {
+            @Override
+            public ContentResolver getContentResolver() {
+                return sProvider;
+            }
+        };
+    }
+
+    static void install(LuaLoader loader, LoadTest.Config config) {}
+
+    static long getCallCount() {
+        return sProvider.calls.get();
+    }
+
+    static long getErrorCount() {
+        return sProvider.errors.get();
+    }
+}
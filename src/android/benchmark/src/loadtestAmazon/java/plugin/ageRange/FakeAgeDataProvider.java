@@ -0,0 +1,62 @@
+//
+//  FakeAgeDataProvider.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Content resolver standing in for the Amazon age data provider. Each query blocks for the configured
+ * latency, like a cross-process provider call, then returns a supervised GetUserAgeData response or
+ * throws at the configured rate.
+ */
+final class FakeAgeDataProvider extends ContentResolver {
+    private static final String RESPONSE = "{\"responseStatus\":\"SUCCESS\",\"userStatus\":\"SUPERVISED\","
+            + "\"ageLower\":13,\"ageUpper\":15,\"userId\":\"amzn1.account.ALOADTEST\","
+            + "\"mostRecentApprovalDate\":\"2025-01-01T00:00:00Z\"}";
+
+    private final LoadTest.Config fConfig;
+
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+
+    FakeAgeDataProvider(LoadTest.Config config) {
+        fConfig = config;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        calls.incrementAndGet();
+        LockSupport.parkNanos(fConfig.nextLatencyMs() * 1000000L);
+        if (fConfig.nextIsError()) {
+            errors.incrementAndGet();
+            throw new IllegalStateException("Age data provider unavailable");
+        }
+        return new Cursor() {
+            @Override
+            public boolean moveToFirst() {
+                return true;
+            }
+
+            @Override
+            public int getColumnIndex(String columnName) {
+                return "data".equals(columnName) ? 0 : -1;
+            }
+
+            @Override
+            public String getString(int columnIndex) {
+                return RESPONSE;
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+}
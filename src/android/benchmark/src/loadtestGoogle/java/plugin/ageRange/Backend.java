@@ -0,0 +1,36 @@
+//
+//  Backend.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import android.content.Context;
+
+/**
+ * Google Play flavour of the load test's backend: a {@link FakeAgeSignalsManager} in place of Play Services.
+ */
+final class Backend {
+    static final String NAME = "Google Play Age Signals";
+
+    private static FakeAgeSignalsManager sManager;
+
+    private Backend() {}
+
+    static Context newContext(LoadTest.Config config) {
+        return new Context();
+    }
+
+    static void install(LuaLoader loader, LoadTest.Config config) {
+        sManager = new FakeAgeSignalsManager(config);
+        loader.setAgeSignalsManager(sManager);
+    }
+
+    static long getCallCount() {
+        return sManager.calls.get();
+    }
+
+    static long getErrorCount() {
+        return sManager.errors.get();
+    }
+}
@@ -0,0 +1,116 @@
+//
+//  FakeAgeSignalsManager.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.tasks.Task;
+import com.google.android.play.agesignals.AgeSignalsException;
+import com.google.android.play.agesignals.AgeSignalsManager;
+import com.google.android.play.agesignals.AgeSignalsRequest;
+import com.google.android.play.agesignals.AgeSignalsResult;
+import com.google.android.play.agesignals.model.AgeSignalsVerificationStatus;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Age Signals Manager that answers every check with a supervised result after the configured
+ * latency, or fails it with a network error at the configured rate.
+ */
+final class FakeAgeSignalsManager implements AgeSignalsManager {
+    private static final AgeSignalsResult RESULT = AgeSignalsResult.builder()
+            .setUserStatus(AgeSignalsVerificationStatus.SUPERVISED)
+            .setAgeLower(13)
+            .setAgeUpper(15)
+            .setInstallId("load-test")
+            .build();
+
+    private final LoadTest.Config fConfig;
+    private final ScheduledExecutorService fScheduler = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "fake-age-signals");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+
+    FakeAgeSignalsManager(LoadTest.Config config) {
+        fConfig = config;
+    }
+
+    @Override
+    public Task<AgeSignalsResult> checkAgeSignals(AgeSignalsRequest request) {
+        calls.incrementAndGet();
+        FakeTask task = new FakeTask();
+        boolean isError = fConfig.nextIsError();
+        fScheduler.schedule(() -> {
+            if (isError) {
+                errors.incrementAndGet();
+                task.complete(null, new AgeSignalsException(AgeSignalsErrors.NETWORK_ERROR));
+            } else {
+                task.complete(RESULT, null);
+            }
+        }, fConfig.nextLatencyMs(), TimeUnit.MILLISECONDS);
+        return task;
+    }
+
+    /** A task completed once by the scheduler; listeners added afterwards run straight away. */
+    private static final class FakeTask extends Task<AgeSignalsResult> {
+        private final ArrayList<Runnable> fListeners = new ArrayList<>();
+        private boolean fComplete;
+        private AgeSignalsResult fResult;
+        private Exception fError;
+
+        @Override
+        public Task<AgeSignalsResult> addOnSuccessListener(Executor executor,
+                OnSuccessListener<? super AgeSignalsResult> listener) {
+            addListener(() -> {
+                if (fError == null) {
+                    executor.execute(() -> listener.onSuccess(fResult));
+                }
+            });
+            return this;
+        }
+
+        @Override
+        public Task<AgeSignalsResult> addOnFailureListener(Executor executor, OnFailureListener listener) {
+            addListener(() -> {
+                if (fError != null) {
+                    executor.execute(() -> listener.onFailure(fError));
+                }
+            });
+            return this;
+        }
+
+        private void addListener(Runnable listener) {
+            synchronized (this) {
+                if (!fComplete) {
+                    fListeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        void complete(AgeSignalsResult result, Exception error) {
+            synchronized (this) {
+                fResult = result;
+                fError = error;
+                fComplete = true;
+            }
+            for (Runnable listener : fListeners) {
+                listener.run();
+            }
+            fListeners.clear();
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package android.app;
+
+import android.content.Context;
+
+/** JVM stand-in for Activity. There is no separate UI thread, so runOnUiThread runs at once. */
+public class Activity extends Context {
+    public void runOnUiThread(Runnable action) {
+        action.run();
+    }
+}
@@ -0,0 +1,16 @@
+package android.content;
+
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+
+/** JVM stand-in for ContentResolver. There are no providers, so every query returns null. */
+public class ContentResolver {
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        return null;
+    }
+
+    public void registerContentObserver(Uri uri, boolean notifyForDescendants, ContentObserver observer) {}
+
+    public void unregisterContentObserver(ContentObserver observer) {}
+}
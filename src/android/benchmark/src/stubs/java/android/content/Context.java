@@ -0,0 +1,18 @@
+package android.content;
+
+import java.io.File;
+
+/** JVM stand-in for Context. Subclasses supply whatever a run needs. */
+public class Context {
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public ContentResolver getContentResolver() {
+        return null;
+    }
+
+    public File getNoBackupFilesDir() {
+        return null;
+    }
+}
@@ -0,0 +1,15 @@
+package android.database;
+
+import java.io.Closeable;
+
+/** JVM stand-in for the parts of Cursor the plugin reads. */
+public interface Cursor extends Closeable {
+    boolean moveToFirst();
+
+    int getColumnIndex(String columnName);
+
+    String getString(int columnIndex);
+
+    @Override
+    void close();
+}
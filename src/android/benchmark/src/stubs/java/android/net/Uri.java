@@ -0,0 +1,19 @@
+package android.net;
+
+/** JVM stand-in for Uri, holding the parsed string. */
+public class Uri {
+    private final String fUri;
+
+    private Uri(String uri) {
+        fUri = uri;
+    }
+
+    public static Uri parse(String uri) {
+        return new Uri(uri);
+    }
+
+    @Override
+    public String toString() {
+        return fUri;
+    }
+}
@@ -0,0 +1,12 @@
+package android.os;
+
+/** JVM stand-in for Build, reporting a current SDK level. */
+public class Build {
+    public static class VERSION {
+        public static final int SDK_INT = 34;
+    }
+
+    public static class VERSION_CODES {
+        public static final int Q = 29;
+    }
+}
@@ -0,0 +1,4 @@
+package android.os;
+
+/** JVM stand-in for Handler; only referenced, never used off-device. */
+public class Handler {}
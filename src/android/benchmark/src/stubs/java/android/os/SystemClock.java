@@ -0,0 +1,8 @@
+package android.os;
+
+/** JVM stand-in for SystemClock, backed by the monotonic System.nanoTime(). */
+public class SystemClock {
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,16 @@
+package android.os;
+
+/** JVM stand-in for Trace. There is no system trace off-device, so every section is dropped. */
+public class Trace {
+    public static boolean isEnabled() {
+        return false;
+    }
+
+    public static void beginSection(String sectionName) {}
+
+    public static void endSection() {}
+
+    public static void beginAsyncSection(String methodName, int cookie) {}
+
+    public static void endAsyncSection(String methodName, int cookie) {}
+}
@@ -0,0 +1,74 @@
+package android.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * JVM stand-in for JsonReader. Android's JsonReader and Gson's share their origin and behaviour,
+ * including throwing IllegalStateException for unexpected tokens, so this delegates to Gson.
+ */
+public final class JsonReader implements Closeable {
+    private final com.google.gson.stream.JsonReader fReader;
+
+    public JsonReader(Reader in) {
+        fReader = new com.google.gson.stream.JsonReader(in);
+    }
+
+    public void beginObject() throws IOException {
+        fReader.beginObject();
+    }
+
+    public void endObject() throws IOException {
+        fReader.endObject();
+    }
+
+    public void beginArray() throws IOException {
+        fReader.beginArray();
+    }
+
+    public void endArray() throws IOException {
+        fReader.endArray();
+    }
+
+    public boolean hasNext() throws IOException {
+        return fReader.hasNext();
+    }
+
+    public JsonToken peek() throws IOException {
+        return JsonToken.valueOf(fReader.peek().name());
+    }
+
+    public String nextName() throws IOException {
+        return fReader.nextName();
+    }
+
+    public String nextString() throws IOException {
+        return fReader.nextString();
+    }
+
+    public boolean nextBoolean() throws IOException {
+        return fReader.nextBoolean();
+    }
+
+    public void nextNull() throws IOException {
+        fReader.nextNull();
+    }
+
+    public int nextInt() throws IOException {
+        return fReader.nextInt();
+    }
+
+    public long nextLong() throws IOException {
+        return fReader.nextLong();
+    }
+
+    public void skipValue() throws IOException {
+        fReader.skipValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        fReader.close();
+    }
+}
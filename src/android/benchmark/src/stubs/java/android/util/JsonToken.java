@@ -0,0 +1,6 @@
+package android.util;
+
+/** JVM stand-in for JsonToken. */
+public enum JsonToken {
+    BEGIN_ARRAY, END_ARRAY, BEGIN_OBJECT, END_OBJECT, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+}
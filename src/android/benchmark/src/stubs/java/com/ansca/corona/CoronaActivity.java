@@ -0,0 +1,16 @@
+package com.ansca.corona;
+
+import android.app.Activity;
+
+/** JVM stand-in for CoronaActivity, holding the dispatcher for its runtime. */
+public class CoronaActivity extends Activity {
+    private final CoronaRuntimeTaskDispatcher fDispatcher;
+
+    public CoronaActivity(CoronaRuntimeTaskDispatcher dispatcher) {
+        fDispatcher = dispatcher;
+    }
+
+    public CoronaRuntimeTaskDispatcher getRuntimeTaskDispatcher() {
+        return fDispatcher;
+    }
+}
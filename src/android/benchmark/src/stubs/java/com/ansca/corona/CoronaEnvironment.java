@@ -0,0 +1,16 @@
+package com.ansca.corona;
+
+import android.content.Context;
+
+/** JVM stand-in for CoronaEnvironment. Off-device there is no activity or application context. */
+public class CoronaEnvironment {
+    public static CoronaActivity getCoronaActivity() {
+        return null;
+    }
+
+    public static Context getApplicationContext() {
+        return null;
+    }
+
+    public static void addRuntimeListener(CoronaRuntimeListener listener) {}
+}
@@ -0,0 +1,57 @@
+package com.ansca.corona;
+
+import com.naef.jnlua.LuaState;
+
+/**
+ * JVM stand-in for CoronaLua's listener helpers, built on the stand-in {@link LuaState}.
+ * Listeners are functions, or tables whose field named after the event is a function.
+ */
+public class CoronaLua {
+    public static final int REFNIL = -1;
+    public static final int NOREF = -2;
+
+    public static int newRef(LuaState L, int index) {
+        L.pushValue(index);
+        return L.ref(LuaState.REGISTRYINDEX);
+    }
+
+    public static void deleteRef(LuaState L, int ref) {
+        L.unref(LuaState.REGISTRYINDEX, ref);
+    }
+
+    public static boolean isListener(LuaState L, int index, String eventName) {
+        if (L.isFunction(index)) {
+            return true;
+        }
+        if (!L.isTable(index)) {
+            return false;
+        }
+        L.getField(index, eventName);
+        boolean isListener = L.isFunction(-1);
+        L.pop(1);
+        return isListener;
+    }
+
+    /**
+     * Pops the event table at the top of the stack and calls the listener referenced by ref with it.
+     */
+    public static void dispatchEvent(LuaState L, int ref, int nresults) throws Exception {
+        int eventIndex = L.getTop();
+        L.rawGet(LuaState.REGISTRYINDEX, ref);
+        if (L.isFunction(-1)) {
+            L.pushValue(eventIndex);
+            L.call(1, nresults);
+        } else if (L.isTable(-1)) {
+            L.getField(eventIndex, "name");
+            String name = L.toString(-1);
+            L.pop(1);
+            L.getField(-1, name);
+            L.insert(-2);
+            L.pushValue(eventIndex);
+            L.call(2, nresults);
+        } else {
+            L.pop(1);
+        }
+        L.remove(eventIndex);
+    }
+}
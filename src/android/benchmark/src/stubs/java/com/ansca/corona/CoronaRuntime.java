@@ -0,0 +1,16 @@
+package com.ansca.corona;
+
+import com.naef.jnlua.LuaState;
+
+/** JVM stand-in for CoronaRuntime: just the Lua state that runtime tasks run against. */
+public class CoronaRuntime {
+    private final LuaState fLuaState;
+
+    public CoronaRuntime(LuaState L) {
+        fLuaState = L;
+    }
+
+    public LuaState getLuaState() {
+        return fLuaState;
+    }
+}
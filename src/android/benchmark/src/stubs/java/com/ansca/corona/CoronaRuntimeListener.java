@@ -0,0 +1,14 @@
+package com.ansca.corona;
+
+/** JVM stand-in for CoronaRuntimeListener. */
+public interface CoronaRuntimeListener {
+    void onLoaded(CoronaRuntime runtime);
+
+    void onStarted(CoronaRuntime runtime);
+
+    void onSuspended(CoronaRuntime runtime);
+
+    void onResumed(CoronaRuntime runtime);
+
+    void onExiting(CoronaRuntime runtime);
+}
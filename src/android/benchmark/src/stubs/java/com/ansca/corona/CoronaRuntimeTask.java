@@ -0,0 +1,6 @@
+package com.ansca.corona;
+
+/** JVM stand-in for CoronaRuntimeTask. */
+public interface CoronaRuntimeTask {
+    void executeUsing(CoronaRuntime runtime);
+}
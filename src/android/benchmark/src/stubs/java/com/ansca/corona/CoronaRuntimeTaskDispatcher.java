@@ -0,0 +1,21 @@
+package com.ansca.corona;
+
+/**
+ * JVM stand-in for CoronaRuntimeTaskDispatcher. Runs each task at once on the calling thread;
+ * subclasses can queue tasks for a simulated runtime thread instead.
+ */
+public class CoronaRuntimeTaskDispatcher {
+    private final CoronaRuntime fRuntime;
+
+    public CoronaRuntimeTaskDispatcher(CoronaRuntime runtime) {
+        fRuntime = runtime;
+    }
+
+    public boolean isRuntimeAvailable() {
+        return fRuntime != null;
+    }
+
+    public void send(CoronaRuntimeTask task) {
+        task.executeUsing(fRuntime);
+    }
+}
@@ -0,0 +1,6 @@
+package com.google.android.gms.tasks;
+
+/** JVM stand-in for OnFailureListener. */
+public interface OnFailureListener {
+    void onFailure(Exception e);
+}
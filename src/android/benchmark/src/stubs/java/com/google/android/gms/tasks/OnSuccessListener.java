@@ -0,0 +1,6 @@
+package com.google.android.gms.tasks;
+
+/** JVM stand-in for OnSuccessListener. */
+public interface OnSuccessListener<TResult> {
+    void onSuccess(TResult result);
+}
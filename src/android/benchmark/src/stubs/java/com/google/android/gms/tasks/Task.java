@@ -0,0 +1,10 @@
+package com.google.android.gms.tasks;
+
+import java.util.concurrent.Executor;
+
+/** JVM stand-in for the parts of Task the plugin uses. */
+public abstract class Task<TResult> {
+    public abstract Task<TResult> addOnSuccessListener(Executor executor, OnSuccessListener<? super TResult> listener);
+
+    public abstract Task<TResult> addOnFailureListener(Executor executor, OnFailureListener listener);
+}
@@ -0,0 +1,15 @@
+package com.google.android.play.agesignals;
+
+/** JVM stand-in for AgeSignalsException, carrying an AgeSignalsErrorCode value. */
+public class AgeSignalsException extends Exception {
+    private final int fErrorCode;
+
+    public AgeSignalsException(int errorCode) {
+        super("Age Signals error " + errorCode);
+        fErrorCode = errorCode;
+    }
+
+    public int getErrorCode() {
+        return fErrorCode;
+    }
+}
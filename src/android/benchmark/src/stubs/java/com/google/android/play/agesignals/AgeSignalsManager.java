@@ -0,0 +1,8 @@
+package com.google.android.play.agesignals;
+
+import com.google.android.gms.tasks.Task;
+
+/** JVM stand-in for AgeSignalsManager. */
+public interface AgeSignalsManager {
+    Task<AgeSignalsResult> checkAgeSignals(AgeSignalsRequest request);
+}
@@ -0,0 +1,10 @@
+package com.google.android.play.agesignals;
+
+import android.content.Context;
+
+/** JVM stand-in for AgeSignalsManagerFactory. There is no Play Store off-device. */
+public class AgeSignalsManagerFactory {
+    public static AgeSignalsManager create(Context context) {
+        throw new UnsupportedOperationException("Play Age Signals is not available off-device");
+    }
+}
@@ -0,0 +1,16 @@
+package com.google.android.play.agesignals;
+
+/** JVM stand-in for AgeSignalsRequest. */
+public class AgeSignalsRequest {
+    private AgeSignalsRequest() {}
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        public AgeSignalsRequest build() {
+            return new AgeSignalsRequest();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.google.android.play.agesignals;
+
+import java.util.Date;
+
+/** JVM stand-in for AgeSignalsResult, with a builder for making results to serve. */
+public class AgeSignalsResult {
+    private final Integer fUserStatus;
+    private final Integer fAgeLower;
+    private final Integer fAgeUpper;
+    private final String fInstallId;
+    private final Date fMostRecentApprovalDate;
+
+    private AgeSignalsResult(Builder builder) {
+        fUserStatus = builder.fUserStatus;
+        fAgeLower = builder.fAgeLower;
+        fAgeUpper = builder.fAgeUpper;
+        fInstallId = builder.fInstallId;
+        fMostRecentApprovalDate = builder.fMostRecentApprovalDate;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Integer userStatus() {
+        return fUserStatus;
+    }
+
+    public Integer ageLower() {
+        return fAgeLower;
+    }
+
+    public Integer ageUpper() {
+        return fAgeUpper;
+    }
+
+    public String installId() {
+        return fInstallId;
+    }
+
+    public Date mostRecentApprovalDate() {
+        return fMostRecentApprovalDate;
+    }
+
+    public static class Builder {
+        private Integer fUserStatus;
+        private Integer fAgeLower;
+        private Integer fAgeUpper;
+        private String fInstallId;
+        private Date fMostRecentApprovalDate;
+
+        public Builder setUserStatus(Integer userStatus) {
+            fUserStatus = userStatus;
+            return this;
+        }
+
+        public Builder setAgeLower(Integer ageLower) {
+            fAgeLower = ageLower;
+            return this;
+        }
+
+        public Builder setAgeUpper(Integer ageUpper) {
+            fAgeUpper = ageUpper;
+            return this;
+        }
+
+        public Builder setInstallId(String installId) {
+            fInstallId = installId;
+            return this;
+        }
+
+        public Builder setMostRecentApprovalDate(Date mostRecentApprovalDate) {
+            fMostRecentApprovalDate = mostRecentApprovalDate;
+            return this;
+        }
+
+        public AgeSignalsResult build() {
+            return new AgeSignalsResult(this);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.google.android.play.agesignals.model;
+
+/** JVM stand-in for AgeSignalsVerificationStatus. */
+public final class AgeSignalsVerificationStatus {
+    public static final int VERIFIED = 0;
+    public static final int SUPERVISED = 1;
+    public static final int SUPERVISED_APPROVAL_PENDING = 2;
+    public static final int SUPERVISED_APPROVAL_DENIED = 3;
+    public static final int UNKNOWN = 4;
+
+    private AgeSignalsVerificationStatus() {}
+}
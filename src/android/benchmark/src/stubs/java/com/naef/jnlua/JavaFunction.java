@@ -0,0 +1,6 @@
+package com.naef.jnlua;
+
+/** JVM stand-in for JNLua's JavaFunction. */
+public interface JavaFunction {
+    int invoke(LuaState L);
+}
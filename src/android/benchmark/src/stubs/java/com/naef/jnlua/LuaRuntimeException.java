@@ -0,0 +1,8 @@
+package com.naef.jnlua;
+
+/** JVM stand-in for JNLua's LuaRuntimeException, raised for Lua errors such as bad arguments. */
+public class LuaRuntimeException extends RuntimeException {
+    public LuaRuntimeException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,386 @@
+package com.naef.jnlua;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * JVM stand-in for JNLua's LuaState: an in-memory Lua stack with the subset of the API the plugin uses.
+ * <p>
+ * Values are held as Java objects: nil is null, numbers are Integer or Double, tables are
+ * {@link LuaTable} and functions are {@link JavaFunction}. {@link #call(int, int)} gives each
+ * function its own stack frame, so plugin functions see their arguments at index 1 as they would
+ * on a device. Like the real thing, an instance must only be used by one thread at a time.
+ */
+public class LuaState {
+    public static final int REGISTRYINDEX = -10000;
+    public static final int MULTRET = -1;
+
+    private static final int REFNIL = -1;
+
+    private Object[] fStack = new Object[64];
+    private int fTop;
+    /** Absolute stack slot of index 1 in the current frame. */
+    private int fBase;
+
+    private final LuaTable fRegistry = new LuaTable(16);
+    private final LuaTable fGlobals = new LuaTable(16);
+    private final ArrayDeque<Integer> fFreeRefs = new ArrayDeque<>();
+    private int fNextRef = 1;
+
+    // ---- stack
+
+    public int getTop() {
+        return fTop - fBase;
+    }
+
+    public void setTop(int index) {
+        int top = index >= 0 ? fBase + index : fTop + index + 1;
+        ensureCapacity(top);
+        if (top < fTop) {
+            Arrays.fill(fStack, top, fTop, null);
+        }
+        fTop = top;
+    }
+
+    public void pop(int count) {
+        setTop(-count - 1);
+    }
+
+    public void pushValue(int index) {
+        push(value(index));
+    }
+
+    public void remove(int index) {
+        int slot = slot(index);
+        System.arraycopy(fStack, slot + 1, fStack, slot, fTop - slot - 1);
+        fStack[--fTop] = null;
+    }
+
+    public void insert(int index) {
+        int slot = slot(index);
+        Object top = fStack[fTop - 1];
+        System.arraycopy(fStack, slot, fStack, slot + 1, fTop - slot - 1);
+        fStack[slot] = top;
+    }
+
+    // ---- push
+
+    public void pushNil() {
+        push(null);
+    }
+
+    public void pushBoolean(boolean b) {
+        push(b);
+    }
+
+    public void pushInteger(int n) {
+        push(n);
+    }
+
+    public void pushNumber(double n) {
+        push(n);
+    }
+
+    public void pushString(String s) {
+        if (s == null) {
+            throw new NullPointerException("pushString(null)");
+        }
+        push(s);
+    }
+
+    public void pushJavaFunction(JavaFunction function) {
+        push(function);
+    }
+
+    public void newTable() {
+        newTable(0, 0);
+    }
+
+    public void newTable(int arrayCount, int recordCount) {
+        push(new LuaTable(arrayCount + recordCount));
+    }
+
+    // ---- type checks and conversion
+
+    /** Returns the type of the value at index, or null if the index is not valid. */
+    public LuaType type(int index) {
+        if (index != REGISTRYINDEX) {
+            int slot = slot(index);
+            if (slot < fBase || slot >= fTop) {
+                return null;
+            }
+        }
+        return typeOf(value(index));
+    }
+
+    public String typeName(int index) {
+        LuaType type = type(index);
+        return type != null ? type.displayText() : "no value";
+    }
+
+    public boolean isNil(int index) {
+        return type(index) == LuaType.NIL;
+    }
+
+    public boolean isNoneOrNil(int index) {
+        return value(index) == null;
+    }
+
+    public boolean isBoolean(int index) {
+        return value(index) instanceof Boolean;
+    }
+
+    public boolean isNumber(int index) {
+        return value(index) instanceof Number;
+    }
+
+    /** True for strings and numbers, which Lua converts to strings. */
+    public boolean isString(int index) {
+        Object value = value(index);
+        return value instanceof String || value instanceof Number;
+    }
+
+    public boolean isTable(int index) {
+        return value(index) instanceof LuaTable;
+    }
+
+    public boolean isFunction(int index) {
+        return value(index) instanceof JavaFunction;
+    }
+
+    public boolean toBoolean(int index) {
+        Object value = value(index);
+        return value != null && !Boolean.FALSE.equals(value);
+    }
+
+    public int toInteger(int index) {
+        Object value = value(index);
+        return value instanceof Number ? ((Number) value).intValue() : 0;
+    }
+
+    public double toNumber(int index) {
+        Object value = value(index);
+        return value instanceof Number ? ((Number) value).doubleValue() : 0;
+    }
+
+    public String toString(int index) {
+        Object value = value(index);
+        if (value instanceof String) {
+            return (String) value;
+        }
+        if (value instanceof Number) {
+            double d = ((Number) value).doubleValue();
+            return d == (long) d ? Long.toString((long) d) : Double.toString(d);
+        }
+        return null;
+    }
+
+    public int length(int index) {
+        Object value = value(index);
+        if (value instanceof LuaTable) {
+            return ((LuaTable) value).length();
+        }
+        return value instanceof String ? ((String) value).length() : 0;
+    }
+
+    // ---- argument checks
+
+    public void checkArg(int index, boolean condition, String msg) {
+        if (!condition) {
+            throw new LuaRuntimeException("bad argument #" + index + " (" + msg + ")");
+        }
+    }
+
+    public void checkType(int index, LuaType type) {
+        checkArg(index, type(index) == type, type.displayText() + " expected, got " + typeName(index));
+    }
+
+    public String checkString(int index) {
+        checkArg(index, isString(index), "string expected, got " + typeName(index));
+        return toString(index);
+    }
+
+    public int checkInteger(int index) {
+        checkArg(index, isNumber(index), "number expected, got " + typeName(index));
+        return toInteger(index);
+    }
+
+    // ---- tables
+
+    public void getField(int index, String key) {
+        push(table(index).get(key));
+    }
+
+    public void setField(int index, String key) {
+        LuaTable table = table(index);
+        table.put(key, popValue());
+    }
+
+    public void rawGet(int index) {
+        LuaTable table = table(index);
+        push(table.get(popValue()));
+    }
+
+    public void rawGet(int index, int key) {
+        push(table(index).get(key));
+    }
+
+    public void rawSet(int index) {
+        LuaTable table = table(index);
+        Object value = popValue();
+        table.put(popValue(), value);
+    }
+
+    public void rawSet(int index, int key) {
+        LuaTable table = table(index);
+        table.put(key, popValue());
+    }
+
+    public boolean next(int index) {
+        LuaTable table = table(index);
+        Map.Entry<Object, Object> entry = table.next(popValue());
+        if (entry == null) {
+            return false;
+        }
+        push(entry.getKey());
+        push(entry.getValue());
+        return true;
+    }
+
+    public void getGlobal(String name) {
+        push(fGlobals.get(name));
+    }
+
+    public void setGlobal(String name) {
+        fGlobals.put(name, popValue());
+    }
+
+    /** Creates a table of the given functions, makes it the global name and pushes it. */
+    public void register(String name, NamedJavaFunction[] functions) {
+        LuaTable module = new LuaTable(functions.length);
+        for (NamedJavaFunction function : functions) {
+            module.put(function.getName(), function);
+        }
+        fGlobals.put(name, module);
+        push(module);
+    }
+
+    // ---- references
+
+    /** Pops the top value and stores it in the table at index under a new integer key. */
+    public int ref(int index) {
+        LuaTable table = table(index);
+        Object value = popValue();
+        if (value == null) {
+            return REFNIL;
+        }
+        Integer ref = fFreeRefs.poll();
+        int key = ref != null ? ref : fNextRef++;
+        table.put(key, value);
+        return key;
+    }
+
+    public void unref(int index, int ref) {
+        if (ref > 0) {
+            table(index).put(ref, null);
+            fFreeRefs.push(ref);
+        }
+    }
+
+    // ---- calls
+
+    /**
+     * Calls the function below the top nargs values, leaving nresults results in its place,
+     * or all of them for MULTRET.
+     */
+    public void call(int nargs, int nresults) {
+        int functionSlot = fTop - nargs - 1;
+        Object function = fStack[functionSlot];
+        if (!(function instanceof JavaFunction)) {
+            throw new LuaRuntimeException("attempt to call a " + typeOf(function).displayText() + " value");
+        }
+
+        int savedBase = fBase;
+        fBase = functionSlot + 1;
+        int count;
+        try {
+            count = ((JavaFunction) function).invoke(this);
+        } catch (RuntimeException e) {
+            fBase = savedBase;
+            setTop(functionSlot - fBase);
+            throw e;
+        }
+        fBase = savedBase;
+
+        // Move the results down over the function and its arguments
+        System.arraycopy(fStack, fTop - count, fStack, functionSlot, count);
+        Arrays.fill(fStack, functionSlot + count, fTop, null);
+        fTop = functionSlot + count;
+        if (nresults != MULTRET) {
+            setTop(functionSlot + nresults - fBase);
+        }
+    }
+
+    // ---- internals
+
+    private void push(Object value) {
+        ensureCapacity(fTop + 1);
+        fStack[fTop++] = value;
+    }
+
+    private Object popValue() {
+        Object value = fStack[fTop - 1];
+        fStack[--fTop] = null;
+        return value;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > fStack.length) {
+            fStack = Arrays.copyOf(fStack, Math.max(size, fStack.length * 2));
+        }
+    }
+
+    private int slot(int index) {
+        if (index > 0) {
+            return fBase + index - 1;
+        }
+        if (index < 0 && index > REGISTRYINDEX) {
+            return fTop + index;
+        }
+        throw new IllegalArgumentException("illegal index " + index);
+    }
+
+    private Object value(int index) {
+        if (index == REGISTRYINDEX) {
+            return fRegistry;
+        }
+        int slot = slot(index);
+        return slot >= fBase && slot < fTop ? fStack[slot] : null;
+    }
+
+    private LuaTable table(int index) {
+        Object value = value(index);
+        if (!(value instanceof LuaTable)) {
+            throw new LuaRuntimeException("attempt to index a " + typeOf(value).displayText() + " value");
+        }
+        return (LuaTable) value;
+    }
+
+    private static LuaType typeOf(Object value) {
+        if (value == null) {
+            return LuaType.NIL;
+        } else if (value instanceof Boolean) {
+            return LuaType.BOOLEAN;
+        } else if (value instanceof Number) {
+            return LuaType.NUMBER;
+        } else if (value instanceof String) {
+            return LuaType.STRING;
+        } else if (value instanceof LuaTable) {
+            return LuaType.TABLE;
+        } else if (value instanceof JavaFunction) {
+            return LuaType.FUNCTION;
+        }
+        return LuaType.USERDATA;
+    }
+}
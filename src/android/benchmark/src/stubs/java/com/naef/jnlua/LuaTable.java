@@ -0,0 +1,66 @@
+package com.naef.jnlua;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A Lua table in the JVM stand-in {@link LuaState}. Not part of JNLua.
+ * <p>
+ * Integral numeric keys are stored as Integers so that t[1] and t[1.0] are the same entry,
+ * and iteration follows insertion order.
+ */
+public final class LuaTable {
+    private final LinkedHashMap<Object, Object> fEntries;
+
+    LuaTable(int sizeHint) {
+        fEntries = new LinkedHashMap<>(Math.max(4, sizeHint * 2));
+    }
+
+    /** Returns the value stored under key, or null for nil. */
+    public Object get(Object key) {
+        return fEntries.get(normalize(key));
+    }
+
+    /** Stores value under key; a null value removes the entry. */
+    public void put(Object key, Object value) {
+        if (value == null) {
+            fEntries.remove(normalize(key));
+        } else {
+            fEntries.put(normalize(key), value);
+        }
+    }
+
+    /** Returns the length of the array part, i.e. the last n with t[1..n] all non-nil. */
+    public int length() {
+        int n = 0;
+        while (fEntries.containsKey(n + 1)) {
+            n++;
+        }
+        return n;
+    }
+
+    /** Returns the key after key in iteration order, or null at the end; a null key starts over. */
+    Map.Entry<Object, Object> next(Object key) {
+        Iterator<Map.Entry<Object, Object>> it = fEntries.entrySet().iterator();
+        if (key != null) {
+            Object normalized = normalize(key);
+            while (it.hasNext()) {
+                if (it.next().getKey().equals(normalized)) {
+                    break;
+                }
+            }
+        }
+        return it.hasNext() ? it.next() : null;
+    }
+
+    private static Object normalize(Object key) {
+        if (key instanceof Number && !(key instanceof Integer)) {
+            double d = ((Number) key).doubleValue();
+            if (d == (int) d) {
+                return (int) d;
+            }
+        }
+        return key;
+    }
+}
@@ -0,0 +1,11 @@
+package com.naef.jnlua;
+
+/** JVM stand-in for JNLua's LuaType. */
+public enum LuaType {
+    NIL, BOOLEAN, LIGHTUSERDATA, NUMBER, STRING, TABLE, FUNCTION, USERDATA, THREAD;
+
+    /** Returns the Lua name of this type, as used in error messages. */
+    public String displayText() {
+        return name().toLowerCase();
+    }
+}
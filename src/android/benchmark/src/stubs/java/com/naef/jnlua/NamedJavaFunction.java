@@ -0,0 +1,6 @@
+package com.naef.jnlua;
+
+/** JVM stand-in for JNLua's NamedJavaFunction. */
+public interface NamedJavaFunction extends JavaFunction {
+    String getName();
+}
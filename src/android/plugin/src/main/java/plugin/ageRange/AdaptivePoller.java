@@ -0,0 +1,143 @@
+//
+//  AdaptivePoller.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a poll repeatedly with an interval that adapts to what the last poll found.
+ * <p>
+ * While a parental approval is pending it polls at a short fixed interval. Otherwise the
+ * interval starts at the minimum and doubles after each poll that finds nothing new, up to the
+ * maximum, and drops back to the minimum when a change is seen. The poll must report back
+ * through {@link #pollCompleted(boolean, boolean)}, and only one poll is scheduled at a time.
+ * All methods are thread-safe.
+ */
+final class AdaptivePoller {
+    /** Default intervals, in milliseconds. */
+    static final long DEFAULT_PENDING_INTERVAL_MS = 15 * 1000;
+    static final long DEFAULT_MIN_INTERVAL_MS = 60 * 1000;
+    static final long DEFAULT_MAX_INTERVAL_MS = 30 * 60 * 1000;
+
+    private final ScheduledExecutorService fExecutor;
+    private final Runnable fPoll;
+
+    private long fPendingIntervalMs = DEFAULT_PENDING_INTERVAL_MS;
+    private long fMinIntervalMs = DEFAULT_MIN_INTERVAL_MS;
+    private long fMaxIntervalMs = DEFAULT_MAX_INTERVAL_MS;
+
+    /** Delay before the next poll when nothing is pending. */
+    private long fIntervalMs = DEFAULT_MIN_INTERVAL_MS;
+
+    private boolean fRunning;
+    private boolean fPaused;
+    private ScheduledFuture<?> fNextPoll;
+
+    AdaptivePoller(ScheduledExecutorService executor, Runnable poll) {
+        fExecutor = executor;
+        fPoll = poll;
+    }
+
+    /**
+     * Sets the polling intervals, in milliseconds. Values of zero or less keep the current setting.
+     */
+    synchronized void setIntervals(long pendingIntervalMs, long minIntervalMs, long maxIntervalMs) {
+        if (pendingIntervalMs > 0) {
+            fPendingIntervalMs = pendingIntervalMs;
+        }
+        if (minIntervalMs > 0) {
+            fMinIntervalMs = minIntervalMs;
+        }
+        if (maxIntervalMs > 0) {
+            fMaxIntervalMs = maxIntervalMs;
+        }
+        fMaxIntervalMs = Math.max(fMaxIntervalMs, fMinIntervalMs);
+        fIntervalMs = Math.min(Math.max(fIntervalMs, fMinIntervalMs), fMaxIntervalMs);
+    }
+
+    /**
+     * Starts polling, beginning with an immediate poll. Does nothing if already running.
+     */
+    synchronized void start() {
+        if (fRunning) {
+            return;
+        }
+        fRunning = true;
+        fIntervalMs = fMinIntervalMs;
+        if (!fPaused) {
+            schedule(0);
+        }
+    }
+
+    /**
+     * Stops polling. A poll that is already running still reports back but schedules nothing.
+     */
+    synchronized void stop() {
+        fRunning = false;
+        cancelNextPoll();
+    }
+
+    /**
+     * Holds off polling, e.g. while the app is in the background.
+     */
+    synchronized void pause() {
+        fPaused = true;
+        cancelNextPoll();
+    }
+
+    /**
+     * Resumes polling after pause(), polling immediately to catch up on anything missed.
+     */
+    synchronized void resume() {
+        if (!fPaused) {
+            return;
+        }
+        fPaused = false;
+        if (fRunning) {
+            schedule(0);
+        }
+    }
+
+    synchronized boolean isRunning() {
+        return fRunning;
+    }
+
+    /**
+     * Schedules the next poll based on what the poll that just finished found.
+     */
+    synchronized void pollCompleted(boolean pending, boolean changed) {
+        if (!fRunning || fPaused) {
+            return;
+        }
+
+        long delayMs;
+        if (pending) {
+            delayMs = fPendingIntervalMs;
+            fIntervalMs = fMinIntervalMs;
+        } else if (changed) {
+            delayMs = fMinIntervalMs;
+            fIntervalMs = fMinIntervalMs;
+        } else {
+            delayMs = fIntervalMs;
+            fIntervalMs = Math.min(fIntervalMs * 2, fMaxIntervalMs);
+        }
+        schedule(delayMs);
+    }
+
+    private void schedule(long delayMs) {
+        cancelNextPoll();
+        fNextPoll = fExecutor.schedule(fPoll, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelNextPoll() {
+        if (fNextPoll != null) {
+            fNextPoll.cancel(false);
+            fNextPoll = null;
+        }
+    }
+}
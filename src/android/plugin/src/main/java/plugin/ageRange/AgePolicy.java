@@ -0,0 +1,173 @@
+//
+//  AgePolicy.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import com.naef.jnlua.LuaState;
+import com.naef.jnlua.LuaType;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Feature gating rules registered from Lua and answered against the current age range result.
+ * <p>
+ * Each feature gets an index when the rules are compiled. The first check after the result
+ * changes evaluates every rule once into a decision array; until the result changes again a
+ * check is a map lookup and an array read. Instances are immutable apart from that cache
+ * and are safe to use from any thread.
+ */
+final class AgePolicy {
+    /** Gating rule for one feature. Unset limits don't restrict anything. */
+    static final class Rule {
+        /** Lowest age the user's whole age range must be at or above. */
+        int minAge = LuaEvent.NONE;
+        /** Highest age the user's whole age range must be at or below. */
+        int maxAge = LuaEvent.NONE;
+        /** False to deny users with parental controls. */
+        boolean allowSupervised = true;
+        /** Answer when there is no usable result, e.g. before the first lookup or for an unknown status. */
+        boolean allowUnknown;
+        /** If set, only users with one of these userStatus values are allowed. */
+        Set<String> statuses;
+
+        boolean allows(AgeRangeEvent result) {
+            if (result == null || result.isError || !result.isAvailable || !isKnownStatus(result.userStatus)) {
+                return allowUnknown;
+            }
+            if (statuses != null && !statuses.contains(result.userStatus)) {
+                return false;
+            }
+            if (!allowSupervised && Boolean.TRUE.equals(result.hasParentalControls)) {
+                return false;
+            }
+            if (minAge != LuaEvent.NONE && (result.lowerBound == LuaEvent.NONE || result.lowerBound < minAge)) {
+                return false;
+            }
+            if (maxAge != LuaEvent.NONE && (result.upperBound == LuaEvent.NONE || result.upperBound > maxAge)) {
+                return false;
+            }
+            return true;
+        }
+
+        private static boolean isKnownStatus(String userStatus) {
+            return userStatus != null && !userStatus.isEmpty() &&
+                    !"unknown".equals(userStatus) && !"empty".equals(userStatus);
+        }
+    }
+
+    /** Decisions for every feature, valid for one result. */
+    private static final class Decisions {
+        final AgeRangeEvent result;
+        final boolean[] allowed;
+
+        Decisions(AgeRangeEvent result, boolean[] allowed) {
+            this.result = result;
+            this.allowed = allowed;
+        }
+    }
+
+    private final Map<String, Integer> fIndex;
+    private final Rule[] fRules;
+    private volatile Decisions fDecisions;
+
+    private AgePolicy(Map<String, Integer> index, Rule[] rules) {
+        fIndex = index;
+        fRules = rules;
+    }
+
+    /**
+     * Compiles the rules table at the given stack index, e.g.
+     * { chat = { minAge = 13, allowSupervised = false }, store = { statuses = { "verified" } } }
+     */
+    static AgePolicy fromLua(LuaState L, int index) {
+        Map<String, Integer> featureIndex = new HashMap<>();
+        Map<Integer, Rule> rules = new HashMap<>();
+
+        L.pushNil();
+        while (L.next(index)) {
+            // Key at -2, rule table at -1
+            // Only string keys; converting a number key in place would break next()
+            if (L.type(-2) == LuaType.STRING && L.isTable(-1)) {
+                int ruleIndex = L.getTop();
+                Rule rule = new Rule();
+
+                L.getField(ruleIndex, "minAge");
+                if (L.isNumber(-1)) {
+                    rule.minAge = L.toInteger(-1);
+                }
+                L.pop(1);
+
+                L.getField(ruleIndex, "maxAge");
+                if (L.isNumber(-1)) {
+                    rule.maxAge = L.toInteger(-1);
+                }
+                L.pop(1);
+
+                L.getField(ruleIndex, "allowSupervised");
+                if (L.isBoolean(-1)) {
+                    rule.allowSupervised = L.toBoolean(-1);
+                }
+                L.pop(1);
+
+                L.getField(ruleIndex, "allowUnknown");
+                if (L.isBoolean(-1)) {
+                    rule.allowUnknown = L.toBoolean(-1);
+                }
+                L.pop(1);
+
+                L.getField(ruleIndex, "statuses");
+                if (L.isTable(-1)) {
+                    int statusesIndex = L.getTop();
+                    rule.statuses = new HashSet<>();
+                    for (int i = 1, count = L.length(statusesIndex); i <= count; i++) {
+                        L.rawGet(statusesIndex, i);
+                        if (L.isString(-1)) {
+                            rule.statuses.add(L.toString(-1));
+                        }
+                        L.pop(1);
+                    }
+                }
+                L.pop(1);
+
+                String featureId = L.toString(-2);
+                int id = featureIndex.size();
+                featureIndex.put(featureId, id);
+                rules.put(id, rule);
+            }
+            L.pop(1);
+        }
+
+        Rule[] ruleArray = new Rule[featureIndex.size()];
+        for (Map.Entry<Integer, Rule> entry : rules.entrySet()) {
+            ruleArray[entry.getKey()] = entry.getValue();
+        }
+        return new AgePolicy(featureIndex, ruleArray);
+    }
+
+    /**
+     * Returns whether the feature may be used given the current result, which may be null.
+     * Features without a rule are denied.
+     */
+    boolean canUse(String featureId, AgeRangeEvent result) {
+        Integer id = fIndex.get(featureId);
+        return id != null && getDecisions(result).allowed[id];
+    }
+
+    private Decisions getDecisions(AgeRangeEvent result) {
+        Decisions decisions = fDecisions;
+        if (decisions == null || decisions.result != result) {
+            boolean[] allowed = new boolean[fRules.length];
+            for (int i = 0; i < fRules.length; i++) {
+                allowed[i] = fRules[i].allows(result);
+            }
+            decisions = new Decisions(result, allowed);
+            fDecisions = decisions;
+        }
+        return decisions;
+    }
+}
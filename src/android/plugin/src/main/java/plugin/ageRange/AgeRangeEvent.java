@@ -0,0 +1,184 @@
+//
+//  AgeRangeEvent.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import com.naef.jnlua.LuaState;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The ageRangeEvent sent in response to requestAgeRange().
+ */
+final class AgeRangeEvent extends LuaEvent {
+    boolean isAvailable;
+    boolean declined;
+    String userStatus;
+    int lowerBound = NONE;
+    int upperBound = NONE;
+    Boolean hasParentalControls;
+    String installId;
+    /** Approval date in milliseconds since the epoch. */
+    long mostRecentApprovalDate = NONE_LONG;
+    int errorCode = NONE;
+    String errorMessage;
+    Boolean isTimeout;
+    /** Names of the fields that differ from the last delivered result; only set in delta mode. */
+    List<String> changedFields;
+    /** True when an unchanged result is delivered because the heartbeat interval passed. */
+    Boolean isHeartbeat;
+    /** True when the result is a saved one served before, or instead of, a fresh lookup. */
+    Boolean isStale;
+    /** How old a stale result is, in milliseconds. */
+    long dataAgeMs = NONE_LONG;
+
+    /**
+     * Creates an event reporting that the age range could not be determined.
+     */
+    static AgeRangeEvent error(String errorMessage) {
+        AgeRangeEvent event = new AgeRangeEvent();
+        event.isError = true;
+        event.isAvailable = false;
+        event.declined = false;
+        event.errorMessage = errorMessage;
+        return event;
+    }
+
+    /**
+     * Creates an event reporting that the lookup did not finish before the request's deadline.
+     */
+    static AgeRangeEvent timeout() {
+        AgeRangeEvent event = error("Age range request timed out");
+        event.isTimeout = true;
+        return event;
+    }
+
+    /**
+     * Returns the names of the result fields whose values differ from those in previous.
+     */
+    List<String> getChangedFields(AgeRangeEvent previous) {
+        List<String> changed = new ArrayList<>(8);
+        if (isAvailable != previous.isAvailable) {
+            changed.add("isAvailable");
+        }
+        if (!Objects.equals(userStatus, previous.userStatus)) {
+            changed.add("userStatus");
+        }
+        if (lowerBound != previous.lowerBound) {
+            changed.add("lowerBound");
+        }
+        if (upperBound != previous.upperBound) {
+            changed.add("upperBound");
+        }
+        if (!Objects.equals(hasParentalControls, previous.hasParentalControls)) {
+            changed.add("hasParentalControls");
+        }
+        if (!Objects.equals(installId, previous.installId)) {
+            changed.add("installId");
+        }
+        if (mostRecentApprovalDate != previous.mostRecentApprovalDate) {
+            changed.add("mostRecentApprovalDate");
+        }
+        // A fresh result replacing a stale one is news even when it says the same thing
+        if (Boolean.TRUE.equals(isStale) != Boolean.TRUE.equals(previous.isStale)) {
+            changed.add("isStale");
+        }
+        return changed;
+    }
+
+    /**
+     * Returns a key that changes whenever the supervision status or approval date does.
+     */
+    String getStatusKey() {
+        return statusKey(userStatus, mostRecentApprovalDate);
+    }
+
+    /**
+     * Returns the status key for the given field values, for callers that have no event.
+     */
+    static String statusKey(String userStatus, long mostRecentApprovalDate) {
+        return userStatus + '|' + mostRecentApprovalDate;
+    }
+
+    /**
+     * Returns a new event with the same result fields, for serving a saved result again.
+     */
+    AgeRangeEvent copyResult() {
+        AgeRangeEvent event = new AgeRangeEvent();
+        event.isError = isError;
+        event.isAvailable = isAvailable;
+        event.declined = declined;
+        event.userStatus = userStatus;
+        event.lowerBound = lowerBound;
+        event.upperBound = upperBound;
+        event.hasParentalControls = hasParentalControls;
+        event.installId = installId;
+        event.mostRecentApprovalDate = mostRecentApprovalDate;
+        event.errorMessage = errorMessage;
+        return event;
+    }
+
+    /**
+     * Writes the result fields for SnapshotStore. Keep in step with readSnapshot().
+     */
+    void writeSnapshot(DataOutput out) throws IOException {
+        out.writeBoolean(isAvailable);
+        SnapshotStore.writeString(out, userStatus);
+        out.writeInt(lowerBound);
+        out.writeInt(upperBound);
+        SnapshotStore.writeBoolean(out, hasParentalControls);
+        SnapshotStore.writeString(out, installId);
+        out.writeLong(mostRecentApprovalDate);
+        SnapshotStore.writeString(out, errorMessage);
+    }
+
+    static AgeRangeEvent readSnapshot(DataInput in) throws IOException {
+        AgeRangeEvent event = new AgeRangeEvent();
+        event.isAvailable = in.readBoolean();
+        event.userStatus = SnapshotStore.readString(in);
+        event.lowerBound = in.readInt();
+        event.upperBound = in.readInt();
+        event.hasParentalControls = SnapshotStore.readBoolean(in);
+        event.installId = SnapshotStore.readString(in);
+        event.mostRecentApprovalDate = in.readLong();
+        event.errorMessage = SnapshotStore.readString(in);
+        return event;
+    }
+
+    @Override
+    String getName() {
+        return LuaLoader.AGE_RANGE_EVENT;
+    }
+
+    @Override
+    int getFieldCount() {
+        return 16;
+    }
+
+    @Override
+    void pushFields(LuaState L) {
+        setField(L, "isError", isError);
+        setField(L, "isAvailable", isAvailable);
+        setField(L, "declined", declined);
+        setField(L, "userStatus", userStatus);
+        setIntegerField(L, "lowerBound", lowerBound);
+        setIntegerField(L, "upperBound", upperBound);
+        setField(L, "hasParentalControls", hasParentalControls);
+        setField(L, "installId", installId);
+        setNumberField(L, "mostRecentApprovalDate", mostRecentApprovalDate);
+        setIntegerField(L, "errorCode", errorCode);
+        setField(L, "errorMessage", errorMessage);
+        setField(L, "isTimeout", isTimeout);
+        setField(L, "changedFields", changedFields);
+        setField(L, "isHeartbeat", isHeartbeat);
+        setField(L, "isStale", isStale);
+        setNumberField(L, "dataAgeMs", dataAgeMs);
+    }
+}
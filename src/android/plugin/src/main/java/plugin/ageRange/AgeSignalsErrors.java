@@ -0,0 +1,109 @@
+//
+//  AgeSignalsErrors.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import com.google.android.play.agesignals.AgeSignalsException;
+
+/**
+ * Maps Age Signals failures to the stable error codes reported to Lua.
+ * <p>
+ * Codes below -999 are specific to this plugin; the rest mirror the Play Age Signals
+ * AgeSignalsErrorCode values.
+ */
+final class AgeSignalsErrors {
+    static final int API_NOT_AVAILABLE = -1;
+    static final int PLAY_STORE_NOT_FOUND = -2;
+    static final int NETWORK_ERROR = -3;
+    static final int PLAY_SERVICES_NOT_FOUND = -4;
+    static final int CANNOT_BIND_TO_SERVICE = -5;
+    static final int PLAY_STORE_VERSION_OUTDATED = -6;
+    static final int PLAY_SERVICES_VERSION_OUTDATED = -7;
+    static final int CLIENT_TRANSIENT_ERROR = -8;
+    static final int APP_NOT_OWNED = -9;
+    static final int INTERNAL_ERROR = -100;
+
+    /** The circuit breaker is open and the check was not attempted. */
+    static final int CIRCUIT_OPEN = -1000;
+
+    /** Raised instead of calling Play Services while the circuit breaker is open. */
+    static final class CircuitOpenException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        CircuitOpenException() {
+            super("Age Signals temporarily unavailable after repeated failures");
+        }
+    }
+
+    private AgeSignalsErrors() {}
+
+    /**
+     * Returns the error code for a failed check, or LuaEvent.NONE if it cannot be classified.
+     */
+    static int classify(Exception e) {
+        if (e instanceof CircuitOpenException) {
+            return CIRCUIT_OPEN;
+        }
+        if (e instanceof AgeSignalsException) {
+            return ((AgeSignalsException) e).getErrorCode();
+        }
+
+        // Fall back to the error name when the exception type doesn't carry a code
+        String errorMessage = e.getMessage();
+        if (errorMessage != null) {
+            if (errorMessage.contains("API_NOT_AVAILABLE")) {
+                return API_NOT_AVAILABLE;
+            } else if (errorMessage.contains("PLAY_STORE_NOT_FOUND")) {
+                return PLAY_STORE_NOT_FOUND;
+            } else if (errorMessage.contains("NETWORK_ERROR")) {
+                return NETWORK_ERROR;
+            }
+        }
+        return LuaEvent.NONE;
+    }
+
+    /**
+     * Returns true for errors that are likely to go away if the check is simply retried.
+     */
+    static boolean isTransient(int errorCode) {
+        return errorCode == NETWORK_ERROR ||
+                errorCode == CANNOT_BIND_TO_SERVICE ||
+                errorCode == CLIENT_TRANSIENT_ERROR ||
+                errorCode == INTERNAL_ERROR;
+    }
+
+    /**
+     * Returns true for errors that mean the service could not be reached, as opposed to a definite answer,
+     * so a previously known result is still the best available.
+     */
+    static boolean isOutage(int errorCode) {
+        return isTransient(errorCode) ||
+                errorCode == API_NOT_AVAILABLE ||
+                errorCode == CIRCUIT_OPEN;
+    }
+
+    /**
+     * Returns a user-facing message for the error code, falling back to the exception's own message.
+     */
+    static String getMessage(int errorCode, Exception e) {
+        switch (errorCode) {
+            case API_NOT_AVAILABLE:
+                return "Age Signals API not available. Please update Play Store.";
+            case PLAY_STORE_NOT_FOUND:
+                return "Play Store not found. Please install or enable Play Store.";
+            case NETWORK_ERROR:
+                return "Network error. Please check connection.";
+            case PLAY_SERVICES_NOT_FOUND:
+                return "Play Services not found. Please install or enable Play Services.";
+            case PLAY_STORE_VERSION_OUTDATED:
+                return "Play Store is out of date. Please update Play Store.";
+            case PLAY_SERVICES_VERSION_OUTDATED:
+                return "Play Services is out of date. Please update Play Services.";
+            default:
+                String errorMessage = e.getMessage();
+                return errorMessage != null ? errorMessage : "Unknown error occurred";
+        }
+    }
+}
@@ -0,0 +1,56 @@
+//
+//  CircuitBreaker.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import android.os.SystemClock;
+
+/**
+ * Stops calling a backend that keeps failing.
+ * <p>
+ * After a number of consecutive failures the breaker opens and {@link #allowRequest()} returns
+ * false until the cool-down has passed. The next request is then let through as a trial: a
+ * success closes the breaker, another failure opens it again. All methods are thread-safe.
+ */
+final class CircuitBreaker {
+    private final int fFailureThreshold;
+    private final long fOpenDurationMs;
+
+    private int fConsecutiveFailures;
+    private long fOpenedAt = -1;
+
+    CircuitBreaker(int failureThreshold, long openDurationMs) {
+        fFailureThreshold = failureThreshold;
+        fOpenDurationMs = openDurationMs;
+    }
+
+    /**
+     * Returns false while the breaker is open and callers should fail fast.
+     */
+    synchronized boolean allowRequest() {
+        if (fOpenedAt < 0) {
+            return true;
+        }
+        if (SystemClock.elapsedRealtime() - fOpenedAt >= fOpenDurationMs) {
+            // Half-open: one more failure reopens the breaker
+            fOpenedAt = -1;
+            fConsecutiveFailures = fFailureThreshold - 1;
+            return true;
+        }
+        return false;
+    }
+
+    synchronized void recordSuccess() {
+        fConsecutiveFailures = 0;
+        fOpenedAt = -1;
+    }
+
+    synchronized void recordFailure() {
+        fConsecutiveFailures++;
+        if (fConsecutiveFailures >= fFailureThreshold) {
+            fOpenedAt = SystemClock.elapsedRealtime();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+//
+//  CommunicationBatchEvent.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import com.naef.jnlua.LuaState;
+
+/**
+ * One chunk of the communicationBatchEvents sent in response to requestCommunicationPermissions().
+ * <p>
+ * The decision depends only on the user's supervision status, so it is made once per batch
+ * and repeated for each handle in the chunk's results array.
+ */
+final class CommunicationBatchEvent extends LuaEvent {
+    /** All handles in the batch; this chunk reports handles[from, to). */
+    String[] handles;
+    int from;
+    int to;
+    String handleKind;
+    String platform;
+    String store;
+    Boolean isSupervised;
+    String userStatus;
+    Boolean requiresParentalApproval;
+    int errorCode = NONE;
+    String errorMessage;
+    /** 1-based position of this chunk, and the number of chunks in the batch. */
+    int chunkIndex = 1;
+    int chunkCount = 1;
+
+    /** Posts the next chunk once this one has been delivered, or null for the last chunk. */
+    Runnable next;
+
+    /**
+     * Returns a copy of this event that reports handles[from, to) as the given chunk.
+     */
+    CommunicationBatchEvent chunk(int from, int to, int chunkIndex, int chunkCount) {
+        CommunicationBatchEvent event = new CommunicationBatchEvent();
+        event.isError = isError;
+        event.handles = handles;
+        event.from = from;
+        event.to = to;
+        event.handleKind = handleKind;
+        event.platform = platform;
+        event.store = store;
+        event.isSupervised = isSupervised;
+        event.userStatus = userStatus;
+        event.requiresParentalApproval = requiresParentalApproval;
+        event.errorCode = errorCode;
+        event.errorMessage = errorMessage;
+        event.chunkIndex = chunkIndex;
+        event.chunkCount = chunkCount;
+        return event;
+    }
+
+    @Override
+    public void dispatch(LuaState L) {
+        try {
+            super.dispatch(L);
+        } finally {
+            if (next != null) {
+                next.run();
+            }
+        }
+    }
+
+    @Override
+    String getName() {
+        return LuaLoader.COMMUNICATION_BATCH_EVENT;
+    }
+
+    @Override
+    int getFieldCount() {
+        return 13;
+    }
+
+    @Override
+    void pushFields(LuaState L) {
+        setField(L, "isError", isError);
+        setField(L, "handleKind", handleKind);
+        setField(L, "platform", platform);
+        setField(L, "store", store);
+        setField(L, "isSupervised", isSupervised);
+        setField(L, "userStatus", userStatus);
+        setField(L, "requiresParentalApproval", requiresParentalApproval);
+        setIntegerField(L, "errorCode", errorCode);
+        setField(L, "errorMessage", errorMessage);
+        setIntegerField(L, "chunkIndex", chunkIndex);
+        setIntegerField(L, "chunkCount", chunkCount);
+        setField(L, "isLastChunk", chunkIndex == chunkCount);
+
+        // Per-handle results for this chunk
+        L.newTable(to - from, 0);
+        for (int i = from; i < to; i++) {
+            L.newTable(0, 3);
+            L.pushString(handles[i]);
+            L.setField(-2, "handle");
+            setField(L, "handleKind", handleKind);
+            setField(L, "requiresParentalApproval", requiresParentalApproval);
+            L.rawSet(-2, i - from + 1);
+        }
+        L.setField(-2, "results");
+    }
+}
@@ -0,0 +1,50 @@
+//
+//  CommunicationEvent.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import com.naef.jnlua.LuaState;
+
+/**
+ * The communicationEvent sent by requestCommunicationPermission() and
+ * startListeningForCommunicationResponses().
+ */
+final class CommunicationEvent extends LuaEvent {
+    String handle;
+    String handleKind;
+    String platform;
+    String store;
+    String message;
+    Boolean isSupervised;
+    String userStatus;
+    Boolean requiresParentalApproval;
+    int errorCode = NONE;
+    String errorMessage;
+
+    @Override
+    String getName() {
+        return LuaLoader.COMMUNICATION_EVENT;
+    }
+
+    @Override
+    int getFieldCount() {
+        return 11;
+    }
+
+    @Override
+    void pushFields(LuaState L) {
+        setField(L, "handle", handle);
+        setField(L, "handleKind", handleKind);
+        setField(L, "platform", platform);
+        setField(L, "store", store);
+        setField(L, "message", message);
+        setField(L, "isError", isError);
+        setField(L, "isSupervised", isSupervised);
+        setField(L, "userStatus", userStatus);
+        setField(L, "requiresParentalApproval", requiresParentalApproval);
+        setIntegerField(L, "errorCode", errorCode);
+        setField(L, "errorMessage", errorMessage);
+    }
+}
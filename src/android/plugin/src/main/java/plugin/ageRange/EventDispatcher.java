@@ -0,0 +1,198 @@
+//
+//  EventDispatcher.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import com.ansca.corona.CoronaActivity;
+import com.ansca.corona.CoronaEnvironment;
+import com.ansca.corona.CoronaRuntime;
+import com.ansca.corona.CoronaRuntimeTask;
+import com.naef.jnlua.LuaState;
+
+import java.util.ArrayDeque;
+
+/**
+ * Batches Lua events so they reach the Corona runtime in as few runtime tasks as possible.
+ * <p>
+ * Events may be posted from any thread. They are queued in order, and a single reusable
+ * {@link CoronaRuntimeTask} drains everything that is pending on the next runtime tick.
+ * Events posted by a listener while a drain is running wait for the following tick.
+ * The runtime is reached through a {@link Scheduler}, so the queue and the event marshalling
+ * can also be driven without a Corona activity.
+ */
+final class EventDispatcher {
+    /** An event waiting to be pushed to Lua on the Corona runtime thread. */
+    interface Event {
+        void dispatch(LuaState L);
+    }
+
+    /** Hands a pending drain to the thread that owns the Lua state. */
+    interface Scheduler {
+        /** Returns false if there is no runtime to dispatch to, in which case events are dropped. */
+        boolean isAvailable();
+
+        /** Arranges for {@link EventDispatcher#drain(LuaState)} to be called on the Lua thread. */
+        void scheduleDrain(EventDispatcher dispatcher);
+    }
+
+    /** Schedules drains as tasks on the current Corona activity's runtime. */
+    static final Scheduler CORONA = new Scheduler() {
+        @Override
+        public boolean isAvailable() {
+            return CoronaEnvironment.getCoronaActivity() != null;
+        }
+
+        @Override
+        public void scheduleDrain(EventDispatcher dispatcher) {
+            CoronaActivity activity = CoronaEnvironment.getCoronaActivity();
+            if (activity != null) {
+                activity.getRuntimeTaskDispatcher().send(dispatcher.fDrainTask);
+            } else {
+                // The runtime went away after the event was queued; release the drain flag
+                dispatcher.clear();
+            }
+        }
+    };
+
+    /** Trace section names */
+    private static final String TRACE_QUEUED = "ageRange.runtimeQueue";
+    private static final String TRACE_LISTENER = "ageRange.luaListener";
+
+    private final Scheduler fScheduler;
+    private final ArrayDeque<Event> fQueue = new ArrayDeque<>();
+    private boolean fDrainScheduled;
+    private volatile Tracer fTracer = Tracer.NONE;
+
+    /** Queue-depth statistics, guarded by this. */
+    private int fMaxQueueDepth;
+    private long fPostedCount;
+    private long fDispatchedCount;
+    private long fBatchCount;
+
+    private final CoronaRuntimeTask fDrainTask = new CoronaRuntimeTask() {
+        @Override
+        public void executeUsing(CoronaRuntime runtime) {
+            drain(runtime.getLuaState());
+        }
+    };
+
+    EventDispatcher() {
+        this(CORONA);
+    }
+
+    EventDispatcher(Scheduler scheduler) {
+        fScheduler = scheduler;
+    }
+
+    /**
+     * Queues an event for dispatch. The event is dropped if no Corona activity is running.
+     */
+    void post(Event event) {
+        if (!fScheduler.isAvailable()) return;
+
+        boolean scheduleDrain = false;
+        synchronized (this) {
+            fQueue.add(event);
+            fPostedCount++;
+            if (fQueue.size() > fMaxQueueDepth) {
+                fMaxQueueDepth = fQueue.size();
+            }
+            if (!fDrainScheduled) {
+                fDrainScheduled = true;
+                scheduleDrain = true;
+            }
+        }
+
+        if (scheduleDrain) {
+            // Only one drain is scheduled at a time, so a fixed cookie is enough
+            fTracer.beginAsyncSection(TRACE_QUEUED, 0);
+            fScheduler.scheduleDrain(this);
+        }
+    }
+
+    /**
+     * Dispatches every event that was pending when the drain started, in the order it was posted,
+     * and schedules another drain for any posted since. An event that fails to dispatch is dropped
+     * so it can't stall the events behind it.
+     */
+    void drain(LuaState L) {
+        Tracer tracer = fTracer;
+        tracer.endAsyncSection(TRACE_QUEUED, 0);
+        int remaining;
+        synchronized (this) {
+            fBatchCount++;
+            remaining = fQueue.size();
+        }
+        while (true) {
+            Event event;
+            synchronized (this) {
+                event = remaining > 0 ? fQueue.poll() : null;
+                if (event == null) {
+                    if (fQueue.isEmpty()) {
+                        fDrainScheduled = false;
+                        return;
+                    }
+                    break;
+                }
+                remaining--;
+                fDispatchedCount++;
+            }
+            tracer.beginSection(TRACE_LISTENER);
+            int top = L.getTop();
+            try {
+                event.dispatch(L);
+            } catch (RuntimeException ignored) {
+            } finally {
+                // A failed event may have left a partly built table on the stack
+                L.setTop(top);
+                tracer.endSection();
+            }
+        }
+
+        // Leave events posted during this drain for the next tick
+        tracer.beginAsyncSection(TRACE_QUEUED, 0);
+        fScheduler.scheduleDrain(this);
+    }
+
+    /**
+     * Sets the tracer that receives the queueing and listener phases.
+     */
+    void setTracer(Tracer tracer) {
+        fTracer = tracer;
+    }
+
+    /**
+     * Drops all pending events, e.g. when the runtime is exiting and will never drain them.
+     */
+    synchronized void clear() {
+        fQueue.clear();
+        fDrainScheduled = false;
+    }
+
+    /** Returns the number of events currently waiting to be dispatched. */
+    synchronized int getQueueDepth() {
+        return fQueue.size();
+    }
+
+    /** Returns the largest number of events that have been waiting at once. */
+    synchronized int getMaxQueueDepth() {
+        return fMaxQueueDepth;
+    }
+
+    /** Returns the total number of events posted. */
+    synchronized long getPostedCount() {
+        return fPostedCount;
+    }
+
+    /** Returns the total number of events dispatched to Lua. */
+    synchronized long getDispatchedCount() {
+        return fDispatchedCount;
+    }
+
+    /** Returns the number of runtime tasks used to dispatch those events. */
+    synchronized long getBatchCount() {
+        return fBatchCount;
+    }
+}
@@ -0,0 +1,71 @@
+//
+//  LatencyHistogram.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import com.naef.jnlua.LuaState;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power-of-two microsecond buckets.
+ * <p>
+ * Recording is a single atomic increment. Percentiles are reported as the upper bound of the
+ * bucket they fall in, which is accurate to within a factor of two.
+ */
+final class LatencyHistogram {
+    /** Bucket i counts latencies below 2^i microseconds; the last bucket also takes everything larger. */
+    private static final int BUCKET_COUNT = 32;
+
+    private final AtomicLongArray fBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Records one latency measured with System.nanoTime().
+     */
+    void record(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        fBuckets.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+    }
+
+    /**
+     * Pushes a table with count, p50, p95 and p99 (in milliseconds) onto the Lua stack.
+     */
+    void push(LuaState L) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = fBuckets.get(i);
+            total += counts[i];
+        }
+
+        L.newTable(0, 4);
+        L.pushNumber(total);
+        L.setField(-2, "count");
+        if (total > 0) {
+            L.pushNumber(percentile(counts, total, 0.50));
+            L.setField(-2, "p50");
+            L.pushNumber(percentile(counts, total, 0.95));
+            L.setField(-2, "p95");
+            L.pushNumber(percentile(counts, total, 0.99));
+            L.setField(-2, "p99");
+        }
+    }
+
+    /**
+     * Returns the upper bound, in milliseconds, of the bucket holding the given percentile.
+     */
+    private static double percentile(long[] counts, long total, double fraction) {
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return (1L << i) / 1000.0;
+            }
+        }
+        return (1L << (counts.length - 1)) / 1000.0;
+    }
+}
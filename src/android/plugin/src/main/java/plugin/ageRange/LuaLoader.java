@@ -7,25 +7,32 @@
 package plugin.ageRange;
 
 import android.app.Activity;
+import android.content.Context;
 
 import com.ansca.corona.CoronaActivity;
 import com.ansca.corona.CoronaEnvironment;
 import com.ansca.corona.CoronaLua;
 import com.ansca.corona.CoronaRuntime;
 import com.ansca.corona.CoronaRuntimeListener;
-import com.ansca.corona.CoronaRuntimeTask;
 import com.google.android.play.agesignals.AgeSignalsManager;
 import com.google.android.play.agesignals.AgeSignalsManagerFactory;
 import com.google.android.play.agesignals.AgeSignalsRequest;
 import com.google.android.play.agesignals.AgeSignalsResult;
 import com.google.android.play.agesignals.model.AgeSignalsVerificationStatus;
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.android.gms.tasks.Task;
 import com.naef.jnlua.JavaFunction;
 import com.naef.jnlua.LuaState;
+import com.naef.jnlua.LuaType;
 import com.naef.jnlua.NamedJavaFunction;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implements the Lua interface for a Corona plugin.
@@ -35,29 +42,158 @@ import java.util.Map;
  */
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
+    /** Supplies the Corona activity and application context the plugin works with. */
+    interface Environment {
+        /** Returns the running Corona activity, or null if there is none. */
+        CoronaActivity getCoronaActivity();
+
+        /** Returns the application context, or null if it is not available yet. */
+        Context getApplicationContext();
+    }
+
+    /** The environment of the app's own Corona runtime. */
+    static final Environment CORONA_ENVIRONMENT = new Environment() {
+        @Override
+        public CoronaActivity getCoronaActivity() {
+            return CoronaEnvironment.getCoronaActivity();
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return CoronaEnvironment.getApplicationContext();
+        }
+    };
+
     /** Lua registry ID to the Lua function to be called when events occur. */
     private int fListener;
 
+    /** Where the activity and application context come from. */
+    private final Environment fEnvironment;
+
+    /** Batches events into one Corona runtime task per tick. */
+    private final EventDispatcher fEventDispatcher;
+
+    /** Latency and throughput counters reported by getStats(). */
+    private final PluginStats fStats = new PluginStats();
+
+    /** Feature gating rules registered through init(), or null if there are none. */
+    private volatile AgePolicy fPolicy;
+
+    /** Registry slots for per-request callbacks, reused from one request to the next. */
+    private final RefPool fCallbackPool = new RefPool();
+
+    /** Drops unchanged requestAgeRange() results when delta mode is on. */
+    private final DeltaFilter fDeltaFilter = new DeltaFilter();
+
+    /** Receives a span for each phase of a lookup; Tracer.NONE unless tracing is enabled. */
+    private volatile Tracer fTracer = Tracer.NONE;
+
+    /** Source of cookies that pair up asynchronous trace sections. */
+    private static final AtomicInteger sTraceCookies = new AtomicInteger();
+
+    /** Trace section names */
+    private static final String TRACE_THREAD_HOP = "ageRange.threadHop";
+    private static final String TRACE_PLAY_SERVICES_TASK = "ageRange.playServicesTask";
+    private static final String TRACE_PROCESS_RESULT = "ageRange.processResult";
+
     /** Event names */
-    private static final String AGE_RANGE_EVENT = "ageRangeEvent";
-    private static final String UPDATE_EVENT = "significantUpdateEvent";
-    private static final String COMMUNICATION_EVENT = "communicationEvent";
+    static final String AGE_RANGE_EVENT = "ageRangeEvent";
+    static final String UPDATE_EVENT = "significantUpdateEvent";
+    static final String COMMUNICATION_EVENT = "communicationEvent";
+    static final String COMMUNICATION_BATCH_EVENT = "communicationBatchEvent";
+
+    /** Default number of handles reported per communicationBatchEvent. */
+    private static final int DEFAULT_BATCH_CHUNK_SIZE = 100;
+
+    /** Values of the platform and store event fields */
+    private static final String PLATFORM = "android";
+    private static final String STORE = "google";
+
+    /** Age Signals Manager, created on first use by getAgeSignalsManager() */
+    private volatile AgeSignalsManager ageSignalsManager;
+
+    /** True to create the Age Signals Manager in the background as soon as the runtime starts. */
+    private boolean fWarmUp;
+
+    /** Requests that can still time out or be cancelled from Lua. */
+    private final RequestTracker fRequestTracker = new RequestTracker(sExecutor);
+
+    /** True to start an age lookup in the background as soon as the runtime starts. */
+    private boolean fPrefetch;
+
+    /** True once onStarted() has been called. */
+    private boolean fStarted;
+
+    /** True to keep the last result on disk and serve it on cold start while revalidating. */
+    private boolean fPersistResult;
+
+    /** Where the last result is saved; null unless persistResult is enabled. */
+    private volatile SnapshotStore fSnapshotStore;
+
+    /** Last known good result, from disk or the latest backend answer, or null if there is none. */
+    private volatile SnapshotStore.Snapshot fSnapshot;
+
+    /** How old a last known good result may be and still be served; 0 disables stale-while-revalidate. */
+    private volatile long fMaxStalenessMs;
+
+    /** True once the backend has answered in this process, after which the saved result is no longer served. */
+    private volatile boolean fRevalidated;
 
-    /** Age Signals Manager */
-    private AgeSignalsManager ageSignalsManager;
+    /** Most recent Age Signals result, shared by every request API. */
+    private static final ResultCache<AgeSignalsResult> sResultCache = new ResultCache<>();
+    private static final HandleDecisionCache sHandleCache = new HandleDecisionCache();
+
+    /** Coalesces concurrent Age Signals checks into a single Play Services call. */
+    private static final SingleFlight<AgeSignalsResult> sInFlightCheck = new SingleFlight<>();
+
+    /**
+     * Background thread that issues Age Signals checks and processes their results.
+     * Results go straight from here to the Corona runtime, skipping the main thread.
+     */
+    private static final ScheduledExecutorService sExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "plugin.ageRange");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Fails checks fast after repeated permanent Play Services errors. */
+    private static final CircuitBreaker sCircuitBreaker = new CircuitBreaker(3, 60 * 1000);
+
+    /** How transient Play Services errors are retried. */
+    private volatile RetryPolicy fRetryPolicy = new RetryPolicy(3, 250, 4000);
+
+    /** True to issue checks and receive their results on the main thread instead of sExecutor. */
+    private boolean fUseMainThread;
+
+    /** Polls Age Signals for status changes while Lua is listening for communication responses. */
+    private final AdaptivePoller fStatusPoller = new AdaptivePoller(sExecutor, this::pollAgeSignals);
+
+    /** Result that later polls are compared against. Guarded by fStatusPoller. */
+    private AgeSignalsResult fLastPolled;
 
     /**
      * Creates a new Lua interface to this plugin.
      */
     @SuppressWarnings("unused")
     public LuaLoader() {
-        // Initialize member variables.
-        fListener = CoronaLua.REFNIL;
+        this(new EventDispatcher(), CORONA_ENVIRONMENT);
 
         // Set up this plugin to listen for Corona runtime events
         CoronaEnvironment.addRuntimeListener(this);
     }
 
+    /**
+     * Creates an instance that delivers its events through the given dispatcher and takes its
+     * activity and context from the given environment. Unlike the public constructor it does not
+     * register for runtime events, so it can be driven directly, e.g. by the load-test harness.
+     */
+    LuaLoader(EventDispatcher eventDispatcher, Environment environment) {
+        // Initialize member variables.
+        fListener = CoronaLua.REFNIL;
+        fEventDispatcher = eventDispatcher;
+        fEnvironment = environment;
+    }
+
     /**
      * Called when this plugin is being loaded via the Lua require() function.
      */
@@ -69,424 +205,1258 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
                 new RequestAgeRangeWrapper(),
                 new RequestSignificantUpdatePermissionWrapper(),
                 new RequestCommunicationPermissionWrapper(),
-                new StartListeningForCommunicationResponsesWrapper()
+                new StartListeningForCommunicationResponsesWrapper(),
+                new InvalidateCacheWrapper(),
+                new CancelRequestWrapper(),
+                new GetStatsWrapper(),
+                new StopListeningForCommunicationResponsesWrapper(),
+                new GetCachedAgeRangeWrapper(),
+                new CanUseWrapper(),
+                new CanUseManyWrapper(),
+                new RequestCommunicationPermissionsWrapper()
         };
         String libName = L.toString( 1 );
         L.register(libName, luaFunctions);
 
-        // Initialize Age Signals Manager
-        CoronaActivity activity = CoronaEnvironment.getCoronaActivity();
-        if (activity != null) {
-            ageSignalsManager = AgeSignalsManagerFactory.create(activity.getApplicationContext());
-        }
+        // The Age Signals Manager is created lazily, keeping Play Services setup out of require()
 
         return 1;
     }
 
     @Override
-    public void onLoaded(CoronaRuntime runtime) {
-        // Reinitialize manager if needed
-        CoronaActivity activity = CoronaEnvironment.getCoronaActivity();
-        if (activity != null && ageSignalsManager == null) {
-            ageSignalsManager = AgeSignalsManagerFactory.create(activity.getApplicationContext());
+    public void onLoaded(CoronaRuntime runtime) {}
+
+    @Override
+    public void onStarted(CoronaRuntime runtime) {
+        fStarted = true;
+        if (fPrefetch) {
+            prefetch();
+        } else if (fWarmUp) {
+            warmUp();
         }
     }
 
-    @Override
-    public void onStarted(CoronaRuntime runtime) {}
+    /**
+     * Create the Age Signals Manager in the background so the first request doesn't pay for it
+     */
+    private void warmUp() {
+        CoronaActivity activity = fEnvironment.getCoronaActivity();
+        if (activity != null) {
+            Context context = activity.getApplicationContext();
+            sExecutor.execute(() -> getAgeSignalsManager(context));
+        }
+    }
+
+    /**
+     * Returns the Age Signals Manager, creating it on first use. Safe to call from any thread.
+     */
+    private AgeSignalsManager getAgeSignalsManager(Context context) {
+        AgeSignalsManager manager = ageSignalsManager;
+        if (manager == null) {
+            synchronized (this) {
+                manager = ageSignalsManager;
+                if (manager == null) {
+                    manager = AgeSignalsManagerFactory.create(context);
+                    ageSignalsManager = manager;
+                }
+            }
+        }
+        return manager;
+    }
 
     @Override
-    public void onSuspended(CoronaRuntime runtime) {}
+    public void onSuspended(CoronaRuntime runtime) {
+        // No status polling while in the background
+        fStatusPoller.pause();
+    }
 
     @Override
-    public void onResumed(CoronaRuntime runtime) {}
+    public void onResumed(CoronaRuntime runtime) {
+        fStatusPoller.resume();
+    }
 
     @Override
     public void onExiting(CoronaRuntime runtime) {
-        // Remove the Lua listener references
+        // Pending events can no longer be delivered
+        fEventDispatcher.clear();
+        fRequestTracker.cancelAll();
+        fStarted = false;
+
+        fStatusPoller.stop();
+        synchronized (fStatusPoller) {
+            fLastPolled = null;
+        }
+
+        // Remove the Lua listener references; pooled callback slots go away with the Lua state
         CoronaLua.deleteRef(runtime.getLuaState(), fListener);
         fListener = CoronaLua.REFNIL;
+        fCallbackPool.clear();
     }
 
     /**
-     * Dispatch age range event to Lua
+     * Replace the tracer that receives lookup and dispatch spans, e.g. with a recorder in tests
      */
-    private void dispatchAgeRangeEvent(final Map<String, Object> eventData) {
-        CoronaActivity activity = CoronaEnvironment.getCoronaActivity();
-        if (activity == null) return;
-
-        activity.getRuntimeTaskDispatcher().send(new CoronaRuntimeTask() {
-            @Override
-            public void executeUsing(CoronaRuntime runtime) {
-                LuaState L = runtime.getLuaState();
-                CoronaLua.newEvent(L, AGE_RANGE_EVENT);
+    void setTracer(Tracer tracer) {
+        fTracer = tracer;
+        fEventDispatcher.setTracer(tracer);
+    }
 
-                for (Map.Entry<String, Object> entry : eventData.entrySet()) {
-                    pushValue(L, entry.getValue());
-                    L.setField(-2, entry.getKey());
-                }
+    /**
+     * Replace the Age Signals Manager, e.g. with FakeAgeSignalsManager to run without Play Services
+     */
+    void setAgeSignalsManager(AgeSignalsManager manager) {
+        ageSignalsManager = manager;
+    }
 
-                try {
-                    CoronaLua.dispatchEvent(L, fListener, 0);
-                } catch (Exception ignored) {}
-            }
-        });
+    /**
+     * Dispatch an event to the Lua listener
+     */
+    private void dispatchEvent(LuaEvent event) {
+        event.listener = fListener;
+        event.postedNanos = System.nanoTime();
+        fEventDispatcher.post(event);
     }
 
     /**
-     * Dispatch significant update event to Lua
+     * Dispatch an event produced by a Lua API call, recording it in that API's stats
      */
-    private void dispatchUpdateEvent(final Map<String, Object> eventData) {
-        CoronaActivity activity = CoronaEnvironment.getCoronaActivity();
-        if (activity == null) return;
+    private void dispatchEvent(LuaEvent event, PluginStats.ApiStats stats, long startNanos) {
+        event.stats = stats;
+        event.startNanos = startNanos;
+        dispatchEvent(event);
+    }
 
-        activity.getRuntimeTaskDispatcher().send(new CoronaRuntimeTask() {
-            @Override
-            public void executeUsing(CoronaRuntime runtime) {
-                LuaState L = runtime.getLuaState();
-                CoronaLua.newEvent(L, UPDATE_EVENT);
+    /**
+     * Record a result that came from the backend, saving it as the snapshot if persistence is enabled
+     */
+    private void onFreshResult(AgeRangeEvent result) {
+        if (result.isError) {
+            onFailedResult();
+            return;
+        }
+        fRevalidated = true;
+        sHandleCache.onStatus(result.getStatusKey());
+        SnapshotStore.Snapshot snapshot = new SnapshotStore.Snapshot(result, System.currentTimeMillis(), false);
+        fSnapshot = snapshot;
+        SnapshotStore store = fSnapshotStore;
+        if (store != null) {
+            sExecutor.execute(() -> store.save(snapshot));
+        }
+    }
 
-                for (Map.Entry<String, Object> entry : eventData.entrySet()) {
-                    pushValue(L, entry.getValue());
-                    L.setField(-2, entry.getKey());
-                }
+    /**
+     * Record a lookup the backend answered with a definite error rather than an outage. The saved result
+     * is then no longer served ahead of lookups, and only stands in for failed ones within maxStalenessMs
+     */
+    private void onFailedResult() {
+        fRevalidated = true;
+    }
 
-                try {
-                    CoronaLua.dispatchEvent(L, fListener, 0);
-                } catch (Exception ignored) {}
-            }
-        });
+    /**
+     * Returns a result to answer with straight away while a fresh lookup runs, or null to wait for the lookup.
+     * That is the saved result after a cold start, or, with stale-while-revalidate, the last known good result
+     * once the cache has expired.
+     */
+    private AgeRangeEvent getStaleResult() {
+        SnapshotStore.Snapshot snapshot = fSnapshot;
+        if (snapshot == null) {
+            return null;
+        }
+        long ageMs = snapshot.getAgeMs();
+        long maxStalenessMs = fMaxStalenessMs;
+        if (maxStalenessMs > 0 && ageMs > maxStalenessMs) {
+            return null;
+        }
+        if (fRevalidated && (maxStalenessMs <= 0 || sResultCache.get() != null)) {
+            return null;
+        }
+        return newStaleEvent(snapshot, ageMs);
     }
 
     /**
-     * Dispatch communication event to Lua
+     * Returns the last known good result to report instead of a failed lookup, or null if there is none
+     * within maxStalenessMs
      */
-    private void dispatchCommunicationEvent(final Map<String, Object> eventData) {
-        CoronaActivity activity = CoronaEnvironment.getCoronaActivity();
-        if (activity == null) return;
+    private AgeRangeEvent getLastGoodResult() {
+        SnapshotStore.Snapshot snapshot = fSnapshot;
+        long maxStalenessMs = fMaxStalenessMs;
+        if (snapshot == null || maxStalenessMs <= 0) {
+            return null;
+        }
+        long ageMs = snapshot.getAgeMs();
+        return ageMs <= maxStalenessMs ? newStaleEvent(snapshot, ageMs) : null;
+    }
 
-        activity.getRuntimeTaskDispatcher().send(new CoronaRuntimeTask() {
-            @Override
-            public void executeUsing(CoronaRuntime runtime) {
-                LuaState L = runtime.getLuaState();
-                CoronaLua.newEvent(L, COMMUNICATION_EVENT);
+    private AgeRangeEvent newStaleEvent(SnapshotStore.Snapshot snapshot, long ageMs) {
+        fStats.staleServed.incrementAndGet();
+        AgeRangeEvent event = snapshot.result.copyResult();
+        event.isStale = true;
+        event.dataAgeMs = ageMs;
+        return event;
+    }
 
-                for (Map.Entry<String, Object> entry : eventData.entrySet()) {
-                    pushValue(L, entry.getValue());
-                    L.setField(-2, entry.getKey());
-                }
+    /**
+     * Dispatch the event that answers a request, to the request's own callback if it has one
+     */
+    private void dispatchEvent(LuaEvent event, PluginStats.ApiStats stats, long startNanos,
+                               RequestTracker.Request request) {
+        event.requestId = request.id;
+        event.callback = request.callback;
+        event.callbackPool = fCallbackPool;
+        dispatchEvent(event, stats, startNanos);
+    }
 
-                try {
-                    CoronaLua.dispatchEvent(L, fListener, 0);
-                } catch (Exception ignored) {}
-            }
-        });
+    /**
+     * Returns a registry reference to the per-call callback, a function passed as the last argument at or
+     * after firstIndex, or REFNIL if there is none
+     */
+    private int acquireCallback(LuaState L, int firstIndex) {
+        int top = L.getTop();
+        if (top >= firstIndex && L.isFunction(top)) {
+            return fCallbackPool.acquire(L, top);
+        }
+        return CoronaLua.REFNIL;
     }
 
     /**
-     * Helper method to push various value types to Lua stack
+     * Dispatch a requestAgeRange() result, unless delta mode drops it as unchanged.
+     * Requests with their own callback always get their result, which still becomes the delta baseline.
      */
-    private void pushValue(LuaState L, Object value) {
-        if (value instanceof String) {
-            L.pushString((String) value);
-        } else if (value instanceof Integer) {
-            L.pushInteger((Integer) value);
-        } else if (value instanceof Boolean) {
-            L.pushBoolean((Boolean) value);
-        } else if (value instanceof Double) {
-            L.pushNumber((Double) value);
-        } else if (value instanceof Long) {
-            L.pushNumber(((Long) value).doubleValue());
+    private void dispatchAgeRangeResult(AgeRangeEvent event, long startNanos, RequestTracker.Request request) {
+        if (request.callback != CoronaLua.REFNIL) {
+            fDeltaFilter.record(event);
+            dispatchEvent(event, fStats.requestAgeRange, startNanos, request);
+        } else if (fDeltaFilter.accept(event)) {
+            dispatchEvent(event, fStats.requestAgeRange, startNanos, request);
         } else {
-            L.pushNil();
+            fStats.unchangedSuppressed.incrementAndGet();
+            fStats.requestAgeRange.recordCompleted(false, System.nanoTime() - startNanos);
         }
     }
 
     /**
      * Initialize age range listener
+     * Parameters: listener (function), options (table, optional)
+     * Options: cacheTtlMs (number) - how long a result is reused across requests, 0 disables caching
+     *          useMainThread (boolean) - run Age Signals checks on the main thread instead of a background thread
+     *          warmUp (boolean) - create the Age Signals Manager in the background once the app has started
+     *          prefetch (boolean) - start an Age Signals check once the app has started so the first request is warm
+     *          maxRetries (number) - how many times a check is retried after a transient error, 0 disables retries
+     *          tracing (boolean) - emit android.os.Trace sections for each phase of a lookup
+     *          deltaMode (boolean) - only send an ageRangeEvent when the result changed, listing changedFields
+     *          heartbeatMs (number) - in delta mode, still send an unchanged result once this long has passed
+     *          persistResult (boolean) - save the last result to app storage and serve it, flagged isStale, on the
+     *                                    first request after a cold start while a fresh lookup runs
+     *          policies (table) - feature rules for canUse(), keyed by feature ID, each with optional
+     *                             minAge, maxAge, allowSupervised, allowUnknown and statuses fields
+     *          maxStalenessMs (number) - serve the last known good result, flagged isStale, while the expired cache
+     *                                    is refreshed in the background or when the lookup fails; 0 disables this
      */
     @SuppressWarnings({"WeakerAccess", "SameReturnValue"})
     public int init(LuaState L) {
         int listenerIndex = 1;
+        int optionsIndex = 2;
+
+        if (CoronaLua.isListener(L, listenerIndex, AGE_RANGE_EVENT) ||
+                CoronaLua.isListener(L, listenerIndex, UPDATE_EVENT) ||
+                CoronaLua.isListener(L, listenerIndex, COMMUNICATION_EVENT) ||
+                CoronaLua.isListener(L, listenerIndex, COMMUNICATION_BATCH_EVENT)) {
+            if (fListener == CoronaLua.REFNIL) {
+                fListener = CoronaLua.newRef(L, listenerIndex);
+            } else {
+                // Replace the listener in place, so the old one isn't leaked and queued events reach the new one
+                L.pushValue(listenerIndex);
+                L.rawSet(LuaState.REGISTRYINDEX, fListener);
+            }
+        }
+
+        if (L.isTable(optionsIndex)) {
+            L.getField(optionsIndex, "cacheTtlMs");
+            if (L.isNumber(-1)) {
+                sResultCache.setTtl((long) L.toNumber(-1));
+            }
+            L.pop(1);
+
+            int communicationCacheSize = -1;
+            long communicationCacheTtlMs = -1;
+            L.getField(optionsIndex, "communicationCacheSize");
+            if (L.isNumber(-1)) {
+                communicationCacheSize = Math.max(0, L.toInteger(-1));
+            }
+            L.pop(1);
+            L.getField(optionsIndex, "communicationCacheTtlMs");
+            if (L.isNumber(-1)) {
+                communicationCacheTtlMs = Math.max(0, (long) L.toNumber(-1));
+            }
+            L.pop(1);
+            sHandleCache.configure(communicationCacheSize, communicationCacheTtlMs);
+
+            L.getField(optionsIndex, "useMainThread");
+            if (L.isBoolean(-1)) {
+                fUseMainThread = L.toBoolean(-1);
+            }
+            L.pop(1);
+
+            L.getField(optionsIndex, "warmUp");
+            if (L.isBoolean(-1)) {
+                fWarmUp = L.toBoolean(-1);
+            }
+            L.pop(1);
+
+            L.getField(optionsIndex, "prefetch");
+            if (L.isBoolean(-1)) {
+                fPrefetch = L.toBoolean(-1);
+            }
+            L.pop(1);
+
+            L.getField(optionsIndex, "maxRetries");
+            if (L.isNumber(-1)) {
+                fRetryPolicy = fRetryPolicy.withMaxRetries(Math.max(0, L.toInteger(-1)));
+            }
+            L.pop(1);
+
+            L.getField(optionsIndex, "tracing");
+            if (L.isBoolean(-1)) {
+                setTracer(L.toBoolean(-1) ? new SystemTracer() : Tracer.NONE);
+            }
+            L.pop(1);
+
+            boolean deltaMode = false;
+            long heartbeatMs = 0;
+            L.getField(optionsIndex, "deltaMode");
+            if (L.isBoolean(-1)) {
+                deltaMode = L.toBoolean(-1);
+            }
+            L.pop(1);
+
+            L.getField(optionsIndex, "heartbeatMs");
+            if (L.isNumber(-1)) {
+                heartbeatMs = (long) L.toNumber(-1);
+            }
+            L.pop(1);
+            fDeltaFilter.configure(deltaMode, heartbeatMs);
+
+            L.getField(optionsIndex, "policies");
+            if (L.isTable(-1)) {
+                fPolicy = AgePolicy.fromLua(L, L.getTop());
+            }
+            L.pop(1);
+
+            L.getField(optionsIndex, "maxStalenessMs");
+            if (L.isNumber(-1)) {
+                fMaxStalenessMs = Math.max(0, (long) L.toNumber(-1));
+            }
+            L.pop(1);
 
-        if (CoronaLua.isListener(L, listenerIndex, AGE_RANGE_EVENT)) {
-            fListener = CoronaLua.newRef(L, listenerIndex);
+            L.getField(optionsIndex, "persistResult");
+            if (L.isBoolean(-1)) {
+                fPersistResult = L.toBoolean(-1);
+            }
+            L.pop(1);
+        }
+
+        if (fPersistResult && fSnapshotStore == null) {
+            Context context = fEnvironment.getApplicationContext();
+            if (context != null) {
+                SnapshotStore store = new SnapshotStore(context.getNoBackupFilesDir());
+                fSnapshotStore = store;
+                // A single read of at most a few KB, done here so that a requestAgeRange() made
+                // straight after init() can already answer with the saved result
+                if (fSnapshot == null) {
+                    fSnapshot = store.load();
+                }
+            }
+        } else if (!fPersistResult && fSnapshotStore != null) {
+            SnapshotStore store = fSnapshotStore;
+            fSnapshotStore = null;
+            fSnapshot = null;
+            sExecutor.execute(store::delete);
+        }
+
+        // init() may run after the runtime has started, e.g. from a scene
+        if (fStarted) {
+            if (fPrefetch) {
+                prefetch();
+            } else if (fWarmUp) {
+                warmUp();
+            }
         }
 
         return 0;
     }
 
     /**
-     * Request age range from user using Google's Age Signals API
+     * Start a background Age Signals check and keep its result in the result cache.
+     * A request made while it is running joins it instead of starting its own lookup.
      */
-    @SuppressWarnings("WeakerAccess")
-    public int requestAgeRange(LuaState L) {
-        CoronaActivity activity = CoronaEnvironment.getCoronaActivity();
-        if (activity == null || ageSignalsManager == null) {
-            Map<String, Object> eventData = new HashMap<>();
-            eventData.put("isError", true);
-            eventData.put("isAvailable", false);
-            eventData.put("declined", false);
-            eventData.put("errorMessage", "Age Signals not available");
-            dispatchAgeRangeEvent(eventData);
-            return 0;
-        }
-
-        activity.runOnUiThread(() -> {
+    private void prefetch() {
+        CoronaActivity activity = fEnvironment.getCoronaActivity();
+        if (activity != null) {
+            checkAgeSignals(activity, result -> {}, e -> {});
+        }
+    }
+
+    /**
+     * Drop the cached Age Signals result so the next request queries Play Services
+     */
+    @SuppressWarnings({"WeakerAccess", "SameReturnValue"})
+    public int invalidateCache(LuaState L) {
+        sResultCache.invalidate();
+        sHandleCache.invalidate();
+
+        // The saved result must not outlive the cache it was taken from
+        SnapshotStore store = fSnapshotStore;
+        fSnapshot = null;
+        if (store != null) {
+            sExecutor.execute(store::delete);
+        }
+        return 0;
+    }
+
+    /**
+     * Run an Age Signals check, serving it from the result cache when possible.
+     * Cache hits are delivered immediately without contacting Play Services, and
+     * calls made while a check is already running share that check's result.
+     * Checks run on the plugin's background thread unless useMainThread was set in init().
+     */
+    private void checkAgeSignals(Activity activity,
+                                 OnSuccessListener<AgeSignalsResult> onSuccess,
+                                 OnFailureListener onFailure) {
+        AgeSignalsResult cached = sResultCache.get();
+        if (cached != null) {
+            fStats.cacheHits.incrementAndGet();
+            onSuccess.onSuccess(cached);
+            return;
+        }
+        fStats.cacheMisses.incrementAndGet();
+
+        boolean isLeader = sInFlightCheck.join((result, error) -> {
+            if (error != null) {
+                onFailure.onFailure(error);
+            } else {
+                onSuccess.onSuccess(result);
+            }
+        });
+        if (!isLeader) {
+            fStats.coalesced.incrementAndGet();
+            return;
+        }
+
+        if (!sCircuitBreaker.allowRequest()) {
+            sInFlightCheck.complete(null, new AgeSignalsErrors.CircuitOpenException());
+            return;
+        }
+
+        Context context = activity.getApplicationContext();
+        Executor executor = fUseMainThread ? activity::runOnUiThread : sExecutor;
+        Tracer tracer = fTracer;
+        int cookie = sTraceCookies.incrementAndGet();
+        tracer.beginAsyncSection(TRACE_THREAD_HOP, cookie);
+        try {
+            executor.execute(() -> {
+                tracer.endAsyncSection(TRACE_THREAD_HOP, cookie);
+                issueAgeSignalsCheck(context, executor, 0);
+            });
+        } catch (RuntimeException e) {
+            tracer.endAsyncSection(TRACE_THREAD_HOP, cookie);
+            sInFlightCheck.complete(null, e);
+        }
+    }
+
+    /**
+     * Call Play Services for the check currently in flight, retrying transient errors with backoff.
+     * Must be called on the given executor, which also receives the task's results.
+     * The check in flight is always completed, even if Play Services can't be reached at all.
+     */
+    private void issueAgeSignalsCheck(Context context, Executor executor, int retries) {
+        long startNanos = System.nanoTime();
+        fStats.backend.recordCall();
+        Tracer tracer = fTracer;
+        int cookie = sTraceCookies.incrementAndGet();
+        tracer.beginAsyncSection(TRACE_PLAY_SERVICES_TASK, cookie);
+        Task<AgeSignalsResult> task;
+        try {
             AgeSignalsRequest request = AgeSignalsRequest.builder().build();
-            Task<AgeSignalsResult> task = ageSignalsManager.checkAgeSignals(request);
-
-            task.addOnSuccessListener(result -> {
-                Map<String, Object> eventData = new HashMap<>();
-                eventData.put("isError", false);
-                eventData.put("isAvailable", true);
-                eventData.put("declined", false);
-
-                // userStatus() returns a nullable Integer. It is null when the
-                // service has no age signal for this account (e.g. a standard
-                // account that hasn't been through Play age verification).
-                // Unboxing null into an int crashes, so handle it explicitly.
-                Integer statusObj = result.userStatus();
-                if (statusObj == null) {
-                    eventData.put("userStatus", "empty");
-                    dispatchAgeRangeEvent(eventData);
+            task = getAgeSignalsManager(context).checkAgeSignals(request);
+        } catch (RuntimeException e) {
+            // Otherwise every later check would join one that never finishes
+            tracer.endAsyncSection(TRACE_PLAY_SERVICES_TASK, cookie);
+            fStats.backend.recordCompleted(true, System.nanoTime() - startNanos);
+            sInFlightCheck.complete(null, e);
+            return;
+        }
+
+        task.addOnSuccessListener(executor, result -> {
+            tracer.endAsyncSection(TRACE_PLAY_SERVICES_TASK, cookie);
+            fStats.backend.recordCompleted(false, System.nanoTime() - startNanos);
+            sCircuitBreaker.recordSuccess();
+            sResultCache.put(result);
+            onFreshResult(newAgeRangeEvent(result));
+            tracer.beginSection(TRACE_PROCESS_RESULT);
+            try {
+                sInFlightCheck.complete(result, null);
+            } finally {
+                tracer.endSection();
+            }
+        }).addOnFailureListener(executor, e -> {
+            tracer.endAsyncSection(TRACE_PLAY_SERVICES_TASK, cookie);
+            fStats.backend.recordCompleted(true, System.nanoTime() - startNanos);
+            int errorCode = AgeSignalsErrors.classify(e);
+            if (AgeSignalsErrors.isTransient(errorCode)) {
+                RetryPolicy retryPolicy = fRetryPolicy;
+                if (retryPolicy.shouldRetry(retries)) {
+                    fStats.retries.incrementAndGet();
+                    sExecutor.schedule(
+                            () -> executor.execute(() -> issueAgeSignalsCheck(context, executor, retries + 1)),
+                            retryPolicy.getDelayMs(retries), TimeUnit.MILLISECONDS);
                     return;
                 }
-                int status = statusObj;
-
-                // Handle different user statuses
-                if (status == AgeSignalsVerificationStatus.VERIFIED) {
-                    // User is verified as 18+
-                    eventData.put("lowerBound", 18);
-                    eventData.put("upperBound", null); // No upper bound for 18+
-                    eventData.put("hasParentalControls", false);
-                    eventData.put("userStatus", "verified");
-                } else if (status == AgeSignalsVerificationStatus.SUPERVISED ||
-                        status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_PENDING ||
-                        status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_DENIED) {
-                    // Supervised user with age range
-                    Integer ageLower = result.ageLower();
-                    Integer ageUpper = result.ageUpper();
+            } else {
+                sCircuitBreaker.recordFailure();
+            }
+            if (!AgeSignalsErrors.isOutage(errorCode)) {
+                onFailedResult();
+            }
+            tracer.beginSection(TRACE_PROCESS_RESULT);
+            try {
+                sInFlightCheck.complete(null, e);
+            } finally {
+                tracer.endSection();
+            }
+        });
+    }
 
-                    if (ageLower != null) {
-                        eventData.put("lowerBound", ageLower);
-                    }
-                    if (ageUpper != null) {
-                        eventData.put("upperBound", ageUpper);
-                    }
+    /**
+     * Request age range from user using Google's Age Signals API
+     * Parameters: options (table, optional), callback (function, optional) - receives this request's event instead of the listener
+     * Options: timeoutMs (number) - dispatch a timeout event if no result arrives within this time
+     * Returns: request handle (number) that can be passed to cancelRequest() and matches the event's requestId
+     */
+    @SuppressWarnings("WeakerAccess")
+    public int requestAgeRange(LuaState L) {
+        long startNanos = System.nanoTime();
+        fStats.requestAgeRange.recordCall();
 
-                    eventData.put("hasParentalControls", true);
-                    if(status == AgeSignalsVerificationStatus.SUPERVISED){
-                        eventData.put("userStatus", "supervised");
-                    } else if (status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_PENDING) {
-                        eventData.put("userStatus", "approvalPending");
-                    }else{
-                        eventData.put("userStatus", "approvalDenied");
-                    }
+        int optionsIndex = 1;
+        long timeoutMs = 0;
 
-                    // Include additional supervised user info
-                    if (result.installId() != null) {
-                        eventData.put("installId", result.installId());
-                    }
-                    if (result.mostRecentApprovalDate() != null) {
-                        eventData.put("mostRecentApprovalDate", result.mostRecentApprovalDate().getTime());
-                    }
-                } else if (status == AgeSignalsVerificationStatus.UNKNOWN) {
-                    // Unknown status - user needs to verify in Play Store
-                    eventData.put("userStatus", "unknown");
-                    eventData.put("errorMessage", "User age status unknown. Please verify in Play Store.");
-                } else {
-                    // Empty status
-                    eventData.put("userStatus", "empty");
-                }
+        // The first argument may be an options table; other arguments are accepted for iOS compatibility
+        if (L.isTable(optionsIndex)) {
+            L.getField(optionsIndex, "timeoutMs");
+            if (L.isNumber(-1)) {
+                timeoutMs = (long) L.toNumber(-1);
+            }
+            L.pop(1);
+        }
 
-                dispatchAgeRangeEvent(eventData);
-            }).addOnFailureListener(e -> {
-                Map<String, Object> eventData = new HashMap<>();
-                eventData.put("isError", true);
-                eventData.put("isAvailable", false);
-                eventData.put("declined", false);
-
-                // Parse error code if available
-                String errorMessage = e.getMessage();
-                if (errorMessage != null) {
-                    if (errorMessage.contains("API_NOT_AVAILABLE")) {
-                        eventData.put("errorCode", -1);
-                        eventData.put("errorMessage", "Age Signals API not available. Please update Play Store.");
-                    } else if (errorMessage.contains("PLAY_STORE_NOT_FOUND")) {
-                        eventData.put("errorCode", -2);
-                        eventData.put("errorMessage", "Play Store not found. Please install or enable Play Store.");
-                    } else if (errorMessage.contains("NETWORK_ERROR")) {
-                        eventData.put("errorCode", -3);
-                        eventData.put("errorMessage", "Network error. Please check connection.");
-                    } else {
-                        eventData.put("errorMessage", errorMessage);
-                    }
-                } else {
-                    eventData.put("errorMessage", "Unknown error occurred");
+        int callback = acquireCallback(L, 1);
+        RequestTracker.Request request = fRequestTracker.start(timeoutMs, callback,
+                timedOut -> dispatchEvent(AgeRangeEvent.timeout(), fStats.requestAgeRange, startNanos, timedOut));
+        L.pushInteger(request.id);
+
+        CoronaActivity activity = fEnvironment.getCoronaActivity();
+        if (activity == null) {
+            fRequestTracker.finish(request);
+            dispatchEvent(AgeRangeEvent.error("Age Signals not available"), fStats.requestAgeRange, startNanos, request);
+            return 1;
+        }
+
+        // Answer from the saved or last known good result and refresh it in the background
+        AgeRangeEvent stale = getStaleResult();
+        if (stale != null) {
+            fRequestTracker.finish(request);
+            dispatchAgeRangeResult(stale, startNanos, request);
+            prefetch();
+            return 1;
+        }
+
+        checkAgeSignals(activity, result -> {
+            if (!fRequestTracker.finish(request)) {
+                return;
+            }
+
+            dispatchAgeRangeResult(newAgeRangeEvent(result), startNanos, request);
+        }, e -> {
+            if (!fRequestTracker.finish(request)) {
+                return;
+            }
+
+            int errorCode = AgeSignalsErrors.classify(e);
+            if (AgeSignalsErrors.isOutage(errorCode)) {
+                // Keep reporting the last known good result through Play outages, noting why it wasn't refreshed
+                AgeRangeEvent lastGood = getLastGoodResult();
+                if (lastGood != null) {
+                    lastGood.errorCode = errorCode;
+                    lastGood.errorMessage = AgeSignalsErrors.getMessage(errorCode, e);
+                    dispatchAgeRangeResult(lastGood, startNanos, request);
+                    return;
                 }
+            }
 
-                dispatchAgeRangeEvent(eventData);
-            });
+            AgeRangeEvent event = AgeRangeEvent.error(AgeSignalsErrors.getMessage(errorCode, e));
+            event.errorCode = errorCode;
+            dispatchEvent(event, fStats.requestAgeRange, startNanos, request);
         });
 
-        return 0;
+        return 1;
+    }
+
+    /**
+     * Builds the ageRangeEvent for an Age Signals result
+     */
+    static AgeRangeEvent newAgeRangeEvent(AgeSignalsResult result) {
+        AgeRangeEvent event = new AgeRangeEvent();
+        event.isError = false;
+        event.isAvailable = true;
+        event.declined = false;
+
+        // userStatus() returns a nullable Integer. It is null when the
+        // service has no age signal for this account (e.g. a standard
+        // account that hasn't been through Play age verification).
+        // Unboxing null into an int crashes, so handle it explicitly.
+        Integer statusObj = result.userStatus();
+        event.userStatus = userStatusName(statusObj);
+        if (statusObj == null) {
+            return event;
+        }
+        int status = statusObj;
+
+        // Handle different user statuses
+        if (status == AgeSignalsVerificationStatus.VERIFIED) {
+            // User is verified as 18+, no upper bound
+            event.lowerBound = 18;
+            event.hasParentalControls = false;
+        } else if (isSupervisedStatus(status)) {
+            // Supervised user with age range
+            Integer ageLower = result.ageLower();
+            Integer ageUpper = result.ageUpper();
+
+            if (ageLower != null) {
+                event.lowerBound = ageLower;
+            }
+            if (ageUpper != null) {
+                event.upperBound = ageUpper;
+            }
+
+            event.hasParentalControls = true;
+
+            // Include additional supervised user info
+            event.installId = result.installId();
+            if (result.mostRecentApprovalDate() != null) {
+                event.mostRecentApprovalDate = result.mostRecentApprovalDate().getTime();
+            }
+        } else if (status == AgeSignalsVerificationStatus.UNKNOWN) {
+            // Unknown status - user needs to verify in Play Store
+            event.errorMessage = "User age status unknown. Please verify in Play Store.";
+        }
+
+        return event;
+    }
+
+    /**
+     * Returns the status key newAgeRangeEvent(result) would have, without building the event
+     */
+    static String statusKey(AgeSignalsResult result) {
+        Integer status = result.userStatus();
+        long mostRecentApprovalDate = LuaEvent.NONE_LONG;
+        if (status != null && isSupervisedStatus(status) && result.mostRecentApprovalDate() != null) {
+            mostRecentApprovalDate = result.mostRecentApprovalDate().getTime();
+        }
+        return AgeRangeEvent.statusKey(userStatusName(status), mostRecentApprovalDate);
+    }
+
+    private static boolean isSupervisedStatus(int status) {
+        return status == AgeSignalsVerificationStatus.SUPERVISED ||
+                status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_PENDING ||
+                status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_DENIED;
+    }
+
+    /**
+     * Returns the userStatus event value for one of the supervised verification statuses
+     */
+    private static String supervisedStatusName(int status) {
+        if (status == AgeSignalsVerificationStatus.SUPERVISED) {
+            return "supervised";
+        } else if (status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_PENDING) {
+            return "approvalPending";
+        } else {
+            return "approvalDenied";
+        }
+    }
+
+    /**
+     * Get a snapshot of the plugin's request counts, latency percentiles, cache and event queue statistics
+     * Returns: table
+     */
+    @SuppressWarnings("WeakerAccess")
+    public int getStats(LuaState L) {
+        fStats.push(L, fEventDispatcher);
+        return 1;
+    }
+
+    /**
+     * Get the last known age range straight from memory, without a lookup, e.g. for per-frame gating
+     * Returns: table with the ageRangeEvent result fields plus isStale and dataAgeMs, or nil if there is no result yet
+     */
+    @SuppressWarnings("WeakerAccess")
+    public int getCachedAgeRange(LuaState L) {
+        SnapshotStore.Snapshot snapshot = fSnapshot;
+        if (snapshot == null) {
+            L.pushNil();
+            return 1;
+        }
+
+        // The snapshot's fields are pushed directly, so nothing is allocated besides the table
+        AgeRangeEvent result = snapshot.result;
+        L.newTable(0, result.getFieldCount());
+        result.pushFields(L);
+        // Stale until fetched in this process, and then once older than the cache TTL, if there is one;
+        // the cache itself is no guide, as it is empty whenever caching is disabled
+        long ageMs = snapshot.getAgeMs();
+        long ttlMs = sResultCache.getTtl();
+        LuaEvent.setField(L, "isStale", snapshot.isRestored || (ttlMs > 0 && ageMs >= ttlMs));
+        L.pushNumber(ageMs);
+        L.setField(-2, "dataAgeMs");
+        return 1;
+    }
+
+    /**
+     * Check a feature against the policies given to init() and the last known age range
+     * Parameters: featureId (string)
+     * Returns: true if the feature may be used; false for features without a rule
+     */
+    @SuppressWarnings("WeakerAccess")
+    public int canUse(LuaState L) {
+        String featureId = L.checkString(1);
+        AgePolicy policy = fPolicy;
+        SnapshotStore.Snapshot snapshot = fSnapshot;
+        L.pushBoolean(policy != null && policy.canUse(featureId, snapshot != null ? snapshot.result : null));
+        return 1;
+    }
+
+    /**
+     * Check several features at once
+     * Parameters: featureIds (table) - array of feature IDs
+     * Returns: table mapping each feature ID to true or false
+     */
+    @SuppressWarnings("WeakerAccess")
+    public int canUseMany(LuaState L) {
+        int featureIdsIndex = 1;
+        if (!L.isTable(featureIdsIndex)) {
+            L.newTable();
+            return 1;
+        }
+
+        AgePolicy policy = fPolicy;
+        SnapshotStore.Snapshot snapshot = fSnapshot;
+        AgeRangeEvent result = snapshot != null ? snapshot.result : null;
+
+        int count = L.length(featureIdsIndex);
+        L.newTable(0, count);
+        int resultIndex = L.getTop();
+        for (int i = 1; i <= count; i++) {
+            L.rawGet(featureIdsIndex, i);
+            if (L.isString(-1)) {
+                String featureId = L.toString(-1);
+                L.pushBoolean(policy != null && policy.canUse(featureId, result));
+                L.setField(resultIndex, featureId);
+            }
+            L.pop(1);
+        }
+        return 1;
+    }
+
+    /**
+     * Abandon an in-flight request so its listener or callback is never called
+     * Parameters: request handle (number) returned by the request function
+     * Returns: true if the request was still in flight
+     */
+    @SuppressWarnings("WeakerAccess")
+    public int cancelRequest(LuaState L) {
+        int requestId = L.checkInteger(1);
+        RequestTracker.Request request = fRequestTracker.cancel(requestId);
+        if (request != null) {
+            fCallbackPool.release(L, request.callback);
+        }
+        L.pushBoolean(request != null);
+        return 1;
     }
 
     /**
      * Request permission for significant app update
      * NOTE: On Android, significant changes are managed through Play Console, not at runtime
      * This function is provided for API compatibility but logs a message
-     * Parameters: description (string)
+     * Parameters: description (string), callback (function, optional)
+     * Returns: request handle (number) that matches the event's requestId
      */
     @SuppressWarnings("WeakerAccess")
     public int requestSignificantUpdatePermission(LuaState L) {
+        long startNanos = System.nanoTime();
+        fStats.requestSignificantUpdatePermission.recordCall();
+
         String description = L.checkString(1);
 
-        // On Android, significant changes must be submitted through Play Console
-        // This is a compatibility function that informs developers
-        Map<String, Object> eventData = new HashMap<>();
-        eventData.put("isError", false);
-        eventData.put("description", description);
-        eventData.put("platform", "android");
-        eventData.put("store", "google");
-        eventData.put("message", "On Android, significant changes must be submitted through Play Console. " +
-                "This API checks the current approval status instead.");
+        int callback = acquireCallback(L, 2);
+        RequestTracker.Request request = fRequestTracker.start(0, callback, null);
+        L.pushInteger(request.id);
 
         // Check current approval status
-        CoronaActivity activity = CoronaEnvironment.getCoronaActivity();
-        if (activity != null && ageSignalsManager != null) {
-            activity.runOnUiThread(() -> {
-                AgeSignalsRequest request = AgeSignalsRequest.builder().build();
-                Task<AgeSignalsResult> task = ageSignalsManager.checkAgeSignals(request);
-
-                task.addOnSuccessListener(result -> {
-                    Map<String, Object> resultData = new HashMap<>(eventData);
-                    // userStatus() may be null; treat that as UNKNOWN so we
-                    // never unbox null into an int.
-                    Integer statusObj = result.userStatus();
-                    int status = (statusObj != null) ? statusObj : AgeSignalsVerificationStatus.UNKNOWN;
-
-                    if (status == AgeSignalsVerificationStatus.SUPERVISED) {
-                        resultData.put("approved", true);
-                        if (result.mostRecentApprovalDate() != null) {
-                            resultData.put("mostRecentApprovalDate", result.mostRecentApprovalDate().getTime());
-                        }
-                    } else if (status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_PENDING) {
-                        resultData.put("approved", false);
-                        resultData.put("pending", true);
-                    } else if (status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_DENIED) {
-                        resultData.put("approved", false);
-                        resultData.put("denied", true);
+        CoronaActivity activity = fEnvironment.getCoronaActivity();
+        if (activity != null) {
+            checkAgeSignals(activity, result -> {
+                if (!fRequestTracker.finish(request)) {
+                    return;
+                }
+
+                UpdateEvent event = newUpdateEvent(description);
+                // userStatus() may be null; treat that as UNKNOWN so we
+                // never unbox null into an int.
+                Integer statusObj = result.userStatus();
+                int status = (statusObj != null) ? statusObj : AgeSignalsVerificationStatus.UNKNOWN;
+
+                if (status == AgeSignalsVerificationStatus.SUPERVISED) {
+                    event.approved = true;
+                    if (result.mostRecentApprovalDate() != null) {
+                        event.mostRecentApprovalDate = result.mostRecentApprovalDate().getTime();
                     }
+                } else if (status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_PENDING) {
+                    event.approved = false;
+                    event.pending = true;
+                } else if (status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_DENIED) {
+                    event.approved = false;
+                    event.denied = true;
+                }
+
+                dispatchEvent(event, fStats.requestSignificantUpdatePermission, startNanos, request);
+            }, e -> {
+                if (!fRequestTracker.finish(request)) {
+                    return;
+                }
 
-                    dispatchUpdateEvent(resultData);
-                }).addOnFailureListener(e -> {
-                    Map<String, Object> errorData = new HashMap<>(eventData);
-                    errorData.put("isError", true);
-                    errorData.put("errorMessage", e.getMessage());
-                    dispatchUpdateEvent(errorData);
-                });
+                UpdateEvent event = newUpdateEvent(description);
+                event.isError = true;
+                event.errorCode = AgeSignalsErrors.classify(e);
+                event.errorMessage = e.getMessage();
+                dispatchEvent(event, fStats.requestSignificantUpdatePermission, startNanos, request);
             });
         } else {
-            eventData.put("isError", true);
-            eventData.put("errorMessage", "Age Signals Manager not available");
-            dispatchUpdateEvent(eventData);
+            fRequestTracker.finish(request);
+            UpdateEvent event = newUpdateEvent(description);
+            event.isError = true;
+            event.errorMessage = "Age Signals Manager not available";
+            dispatchEvent(event, fStats.requestSignificantUpdatePermission, startNanos, request);
         }
 
-        return 0;
+        return 1;
+    }
+
+    /**
+     * Creates the significantUpdateEvent fields shared by every requestSignificantUpdatePermission() result
+     */
+    static UpdateEvent newUpdateEvent(String description) {
+        // On Android, significant changes must be submitted through Play Console
+        // This is a compatibility function that informs developers
+        UpdateEvent event = new UpdateEvent();
+        event.isError = false;
+        event.description = description;
+        event.platform = PLATFORM;
+        event.store = STORE;
+        event.message = "On Android, significant changes must be submitted through Play Console. " +
+                "This API checks the current approval status instead.";
+        return event;
     }
 
     /**
      * Request communication permission
      * NOTE: Android Age Signals API doesn't have a direct equivalent to iOS PermissionKit
      * for communication requests. This function checks if the user is supervised.
-     * Parameters: handle (string), handleKind (string)
+     * Parameters: handle (string), handleKind (string), callback (function, optional)
+     * Returns: request handle (number) that matches the event's requestId
      */
     @SuppressWarnings("WeakerAccess")
     public int requestCommunicationPermission(LuaState L) {
+        long startNanos = System.nanoTime();
+        fStats.requestCommunicationPermission.recordCall();
+
         String handle = L.checkString(1);
         String handleKind = L.checkString(2);
 
-        Map<String, Object> eventData = new HashMap<>();
-        eventData.put("handle", handle);
-        eventData.put("handleKind", handleKind);
-        eventData.put("platform", "android");
-        eventData.put("store", "google");
-        eventData.put("message", "Android Age Signals API doesn't have direct communication approval. " +
-                "Check user supervision status instead.");
-
-        CoronaActivity activity = CoronaEnvironment.getCoronaActivity();
-        if (activity != null && ageSignalsManager != null) {
-            activity.runOnUiThread(() -> {
-                AgeSignalsRequest request = AgeSignalsRequest.builder().build();
-                Task<AgeSignalsResult> task = ageSignalsManager.checkAgeSignals(request);
-
-                task.addOnSuccessListener(result -> {
-                    Map<String, Object> resultData = new HashMap<>(eventData);
-                    // userStatus() may be null; treat that as UNKNOWN so we
-                    // never unbox null into an int.
-                    Integer statusObj = result.userStatus();
-                    int status = (statusObj != null) ? statusObj : AgeSignalsVerificationStatus.UNKNOWN;
-
-                    // For supervised users, communication should be restricted
-                    if (status == AgeSignalsVerificationStatus.SUPERVISED ||
-                            status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_PENDING ||
-                            status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_DENIED) {
-                        resultData.put("isError", false);
-                        resultData.put("isSupervised", true);
-                        if(status == AgeSignalsVerificationStatus.SUPERVISED){
-                            resultData.put("userStatus", "supervised");
-                        } else if (status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_PENDING) {
-                            resultData.put("userStatus", "approvalPending");
-                        }else{
-                            resultData.put("userStatus", "approvalDenied");
-                        }
-                        // App should implement its own communication approval logic
-                        resultData.put("requiresParentalApproval", true);
-                    } else {
-                        resultData.put("isError", false);
-                        resultData.put("isSupervised", false);
-                        resultData.put("requiresParentalApproval", false);
-                    }
+        int callback = acquireCallback(L, 3);
+        RequestTracker.Request request = fRequestTracker.start(0, callback, null);
+        L.pushInteger(request.id);
+
+        // Repeat checks for a handle are answered in memory until the status changes
+        HandleDecisionCache.Decision decision = sHandleCache.get(handle, handleKind);
+        if (decision != null) {
+            fRequestTracker.finish(request);
+            fStats.handleCacheHits.incrementAndGet();
+            CommunicationEvent event = newCommunicationEvent(handle, handleKind);
+            event.isError = false;
+            event.isSupervised = decision.isSupervised;
+            event.userStatus = decision.userStatus;
+            event.requiresParentalApproval = decision.requiresParentalApproval;
+            dispatchEvent(event, fStats.requestCommunicationPermission, startNanos, request);
+            return 1;
+        }
+
+        CoronaActivity activity = fEnvironment.getCoronaActivity();
+        if (activity != null) {
+            checkAgeSignals(activity, result -> {
+                if (!fRequestTracker.finish(request)) {
+                    return;
+                }
+
+                CommunicationEvent event = newCommunicationEvent(handle, handleKind);
+                // userStatus() may be null; treat that as UNKNOWN so we
+                // never unbox null into an int.
+                Integer statusObj = result.userStatus();
+                int status = (statusObj != null) ? statusObj : AgeSignalsVerificationStatus.UNKNOWN;
+
+                // For supervised users, communication should be restricted
+                event.isError = false;
+                if (status == AgeSignalsVerificationStatus.SUPERVISED ||
+                        status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_PENDING ||
+                        status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_DENIED) {
+                    event.isSupervised = true;
+                    event.userStatus = supervisedStatusName(status);
+                    // App should implement its own communication approval logic
+                    event.requiresParentalApproval = true;
+                } else {
+                    event.isSupervised = false;
+                    event.requiresParentalApproval = false;
+                }
+                sHandleCache.put(handle, handleKind, statusKey(result),
+                        new HandleDecisionCache.Decision(event.isSupervised, event.userStatus,
+                                event.requiresParentalApproval));
+
+                dispatchEvent(event, fStats.requestCommunicationPermission, startNanos, request);
+            }, e -> {
+                if (!fRequestTracker.finish(request)) {
+                    return;
+                }
 
-                    dispatchCommunicationEvent(resultData);
-                }).addOnFailureListener(e -> {
-                    Map<String, Object> errorData = new HashMap<>(eventData);
-                    errorData.put("isError", true);
-                    errorData.put("errorMessage", e.getMessage());
-                    dispatchCommunicationEvent(errorData);
-                });
+                CommunicationEvent event = newCommunicationEvent(handle, handleKind);
+                event.isError = true;
+                event.errorCode = AgeSignalsErrors.classify(e);
+                event.errorMessage = e.getMessage();
+                dispatchEvent(event, fStats.requestCommunicationPermission, startNanos, request);
             });
         } else {
-            eventData.put("isError", true);
-            eventData.put("errorMessage", "Age Signals Manager not available");
-            dispatchCommunicationEvent(eventData);
+            fRequestTracker.finish(request);
+            CommunicationEvent event = newCommunicationEvent(handle, handleKind);
+            event.isError = true;
+            event.errorMessage = "Age Signals Manager not available";
+            dispatchEvent(event, fStats.requestCommunicationPermission, startNanos, request);
         }
 
-        return 0;
+        return 1;
+    }
+
+    /**
+     * Request communication permission for many handles at once
+     * Uses one Age Signals check for every handle, since the answer depends only on supervision status.
+     * Results arrive as communicationBatchEvents, each reporting up to chunkSize handles in its results array.
+     * Parameters: handles (table) - array of handle strings, handleKind (string), options (table, optional),
+     *             callback (function, optional)
+     * Options: chunkSize (number) - most handles reported per event
+     * Returns: request handle (number) that matches each event's requestId
+     */
+    @SuppressWarnings("WeakerAccess")
+    public int requestCommunicationPermissions(LuaState L) {
+        long startNanos = System.nanoTime();
+        fStats.requestCommunicationPermissions.recordCall();
+
+        int handlesIndex = 1;
+        L.checkType(handlesIndex, LuaType.TABLE);
+        int count = L.length(handlesIndex);
+        String[] handles = new String[count];
+        for (int i = 0; i < count; i++) {
+            L.rawGet(handlesIndex, i + 1);
+            handles[i] = L.isString(-1) ? L.toString(-1) : null;
+            L.pop(1);
+            L.checkArg(handlesIndex, handles[i] != null, "array of handle strings expected");
+        }
+        String handleKind = L.checkString(2);
+
+        int optionsIndex = 3;
+        int chunkSize = DEFAULT_BATCH_CHUNK_SIZE;
+        if (L.isTable(optionsIndex)) {
+            L.getField(optionsIndex, "chunkSize");
+            if (L.isNumber(-1)) {
+                chunkSize = Math.max(1, L.toInteger(-1));
+            }
+            L.pop(1);
+        }
+        int finalChunkSize = chunkSize;
+
+        int callback = acquireCallback(L, 3);
+        RequestTracker.Request request = fRequestTracker.start(0, callback, null);
+        L.pushInteger(request.id);
+
+        CommunicationBatchEvent template = new CommunicationBatchEvent();
+        template.handles = handles;
+        template.handleKind = handleKind;
+        template.platform = PLATFORM;
+        template.store = STORE;
+
+        // Entries are dropped whenever the status changes, so cached decisions never disagree
+        HandleDecisionCache.Decision decision = count > 0 ? sHandleCache.get(handles[0], handleKind) : null;
+        for (int i = 1; i < count && decision != null; i++) {
+            if (sHandleCache.get(handles[i], handleKind) == null) {
+                decision = null;
+            }
+        }
+        if (decision != null) {
+            fRequestTracker.finish(request);
+            fStats.handleCacheHits.incrementAndGet();
+            template.isError = false;
+            template.isSupervised = decision.isSupervised;
+            template.userStatus = decision.userStatus;
+            template.requiresParentalApproval = decision.requiresParentalApproval;
+            dispatchCommunicationBatch(template, chunkSize, startNanos, request);
+            return 1;
+        }
+
+        CoronaActivity activity = fEnvironment.getCoronaActivity();
+        if (activity == null) {
+            fRequestTracker.finish(request);
+            template.isError = true;
+            template.errorMessage = "Age Signals Manager not available";
+            dispatchCommunicationBatch(template, chunkSize, startNanos, request);
+            return 1;
+        }
+
+        checkAgeSignals(activity, result -> {
+            if (!fRequestTracker.finish(request)) {
+                return;
+            }
+
+            Integer statusObj = result.userStatus();
+            int status = (statusObj != null) ? statusObj : AgeSignalsVerificationStatus.UNKNOWN;
+            boolean isSupervised = status == AgeSignalsVerificationStatus.SUPERVISED ||
+                    status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_PENDING ||
+                    status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_DENIED;
+
+            template.isError = false;
+            template.isSupervised = isSupervised;
+            if (isSupervised) {
+                template.userStatus = supervisedStatusName(status);
+            }
+            template.requiresParentalApproval = isSupervised;
+            rememberBatchDecisions(template, statusKey(result));
+            dispatchCommunicationBatch(template, finalChunkSize, startNanos, request);
+        }, e -> {
+            if (!fRequestTracker.finish(request)) {
+                return;
+            }
+
+            template.isError = true;
+            template.errorCode = AgeSignalsErrors.classify(e);
+            template.errorMessage = e.getMessage();
+            dispatchCommunicationBatch(template, finalChunkSize, startNanos, request);
+        });
+
+        return 1;
+    }
+
+    /**
+     * Cache the decision in a successful batch result for each of its handles
+     */
+    private static void rememberBatchDecisions(CommunicationBatchEvent template, String statusKey) {
+        HandleDecisionCache.Decision decision = new HandleDecisionCache.Decision(template.isSupervised,
+                template.userStatus, template.requiresParentalApproval);
+        for (String handle : template.handles) {
+            sHandleCache.put(handle, template.handleKind, statusKey, decision);
+        }
+    }
+
+    /**
+     * Dispatch a batch result as communicationBatchEvents of at most chunkSize handles each.
+     * The request's callback is kept until the last chunk, which alone is counted in the stats.
+     */
+    private void dispatchCommunicationBatch(CommunicationBatchEvent template, int chunkSize, long startNanos,
+                                            RequestTracker.Request request) {
+        int chunkCount = Math.max(1, (template.handles.length + chunkSize - 1) / chunkSize);
+        dispatchCommunicationChunk(template, chunkSize, 0, chunkCount, startNanos, request);
+    }
+
+    /**
+     * Dispatch one chunk of a batch result. Each chunk posts the next only once it has been delivered,
+     * so a long list reaches Lua one chunk per runtime tick rather than all in one frame.
+     */
+    private void dispatchCommunicationChunk(CommunicationBatchEvent template, int chunkSize, int chunk,
+                                            int chunkCount, long startNanos, RequestTracker.Request request) {
+        int count = template.handles.length;
+        int from = chunk * chunkSize;
+        CommunicationBatchEvent event = template.chunk(from, Math.min(count, from + chunkSize), chunk + 1, chunkCount);
+        if (chunk + 1 < chunkCount) {
+            event.keepsCallback = true;
+            event.next = () -> dispatchCommunicationChunk(template, chunkSize, chunk + 1, chunkCount, startNanos,
+                    request);
+            dispatchEvent(event, null, startNanos, request);
+        } else {
+            dispatchEvent(event, fStats.requestCommunicationPermissions, startNanos, request);
+        }
+    }
+
+    /**
+     * Creates the communicationEvent fields shared by every requestCommunicationPermission() result
+     */
+    static CommunicationEvent newCommunicationEvent(String handle, String handleKind) {
+        CommunicationEvent event = new CommunicationEvent();
+        event.handle = handle;
+        event.handleKind = handleKind;
+        event.platform = PLATFORM;
+        event.store = STORE;
+        event.message = "Android Age Signals API doesn't have direct communication approval. " +
+                "Check user supervision status instead.";
+        return event;
     }
 
     /**
      * Start listening for communication responses
-     * NOTE: Android doesn't have a real-time listener for parental responses like iOS
-     * This is a no-op function for API compatibility
+     * Android has no real-time listener for parental responses like iOS, so the plugin polls Age Signals
+     * and dispatches a communicationEvent whenever the user's status changes. Polls are frequent while an
+     * approval is pending and back off while the status is stable; they pause while the app is suspended.
+     * Parameters: options (table, optional)
+     * Options: pendingIntervalMs (number) - poll interval while a parental approval is pending
+     *          minIntervalMs (number) - shortest poll interval otherwise
+     *          maxIntervalMs (number) - longest poll interval once the status has been stable for a while
      */
     @SuppressWarnings({"WeakerAccess", "SameReturnValue"})
     public int startListeningForCommunicationResponses(LuaState L) {
-        // Android Age Signals API doesn't support real-time response listening
-        // Apps need to call checkAgeSignals() to get updated status
-        Map<String, Object> eventData = new HashMap<>();
-        eventData.put("isError", false);
-        eventData.put("platform", "android");
-        eventData.put("store", "google");
-        eventData.put("message", "Android doesn't support real-time response listening. " +
-                "Call requestAgeRange() periodically to check for status updates.");
-        dispatchCommunicationEvent(eventData);
+        long startNanos = System.nanoTime();
+        fStats.startListeningForCommunicationResponses.recordCall();
+
+        int optionsIndex = 1;
+        if (L.isTable(optionsIndex)) {
+            long pendingIntervalMs = 0;
+            long minIntervalMs = 0;
+            long maxIntervalMs = 0;
+
+            L.getField(optionsIndex, "pendingIntervalMs");
+            if (L.isNumber(-1)) {
+                pendingIntervalMs = (long) L.toNumber(-1);
+            }
+            L.pop(1);
+
+            L.getField(optionsIndex, "minIntervalMs");
+            if (L.isNumber(-1)) {
+                minIntervalMs = (long) L.toNumber(-1);
+            }
+            L.pop(1);
+
+            L.getField(optionsIndex, "maxIntervalMs");
+            if (L.isNumber(-1)) {
+                maxIntervalMs = (long) L.toNumber(-1);
+            }
+            L.pop(1);
+
+            fStatusPoller.setIntervals(pendingIntervalMs, minIntervalMs, maxIntervalMs);
+        }
+
+        // Every caller shares the one poller
+        fStatusPoller.start();
 
+        CommunicationEvent event = new CommunicationEvent();
+        event.isError = false;
+        event.platform = PLATFORM;
+        event.store = STORE;
+        event.message = "Polling Age Signals for status changes. " +
+                "A communicationEvent is sent whenever the user's status changes.";
+        dispatchEvent(event, fStats.startListeningForCommunicationResponses, startNanos);
+
+        return 0;
+    }
+
+    /**
+     * Stop the status polling started by startListeningForCommunicationResponses()
+     */
+    @SuppressWarnings({"WeakerAccess", "SameReturnValue"})
+    public int stopListeningForCommunicationResponses(LuaState L) {
+        fStatusPoller.stop();
+        synchronized (fStatusPoller) {
+            fLastPolled = null;
+        }
         return 0;
     }
 
+    /**
+     * Run one status poll, bypassing the result cache. Requests made meanwhile share the poll's check.
+     */
+    private void pollAgeSignals() {
+        CoronaActivity activity = fEnvironment.getCoronaActivity();
+        if (activity == null) {
+            fStatusPoller.pollCompleted(false, false);
+            return;
+        }
+        sResultCache.invalidate();
+        checkAgeSignals(activity, this::onPolledResult, e -> fStatusPoller.pollCompleted(false, false));
+    }
+
+    /**
+     * Compare a polled result with the previous one, dispatch a communicationEvent if the status changed,
+     * and schedule the next poll. The first result just becomes the baseline.
+     */
+    private void onPolledResult(AgeSignalsResult result) {
+        Integer statusObj = result.userStatus();
+        int status = (statusObj != null) ? statusObj : AgeSignalsVerificationStatus.UNKNOWN;
+
+        boolean changed;
+        synchronized (fStatusPoller) {
+            if (!fStatusPoller.isRunning()) {
+                return;
+            }
+            AgeSignalsResult last = fLastPolled;
+            fLastPolled = result;
+            changed = last != null && !hasSameStatus(last, result);
+        }
+        fStatusPoller.pollCompleted(status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_PENDING, changed);
+
+        if (changed) {
+            boolean isSupervised = status == AgeSignalsVerificationStatus.SUPERVISED ||
+                    status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_PENDING ||
+                    status == AgeSignalsVerificationStatus.SUPERVISED_APPROVAL_DENIED;
+
+            CommunicationEvent event = new CommunicationEvent();
+            event.isError = false;
+            event.platform = PLATFORM;
+            event.store = STORE;
+            event.message = "Age Signals status changed";
+            event.isSupervised = isSupervised;
+            event.userStatus = userStatusName(statusObj);
+            event.requiresParentalApproval = isSupervised;
+            dispatchEvent(event);
+        }
+    }
+
+    /**
+     * Returns true if both results report the same status, age range and approval date
+     */
+    private static boolean hasSameStatus(AgeSignalsResult a, AgeSignalsResult b) {
+        return Objects.equals(a.userStatus(), b.userStatus())
+                && Objects.equals(a.ageLower(), b.ageLower())
+                && Objects.equals(a.ageUpper(), b.ageUpper())
+                && Objects.equals(a.mostRecentApprovalDate(), b.mostRecentApprovalDate());
+    }
+
+    /**
+     * Returns the userStatus event value for any verification status, matching requestAgeRange()
+     */
+    private static String userStatusName(Integer status) {
+        if (status == null) {
+            return "empty";
+        } else if (status == AgeSignalsVerificationStatus.VERIFIED) {
+            return "verified";
+        } else if (isSupervisedStatus(status)) {
+            return supervisedStatusName(status);
+        } else if (status == AgeSignalsVerificationStatus.UNKNOWN) {
+            return "unknown";
+        } else {
+            return "empty";
+        }
+    }
+
     /** Implements the library.init() Lua function. */
     private class InitWrapper implements NamedJavaFunction {
         @Override
@@ -551,4 +1521,108 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
             return startListeningForCommunicationResponses(L);
         }
     }
+
+    /** Implements the library.invalidateCache() Lua function. */
+    private class InvalidateCacheWrapper implements NamedJavaFunction {
+        @Override
+        public String getName() {
+            return "invalidateCache";
+        }
+
+        @Override
+        public int invoke(LuaState L) {
+            return invalidateCache(L);
+        }
+    }
+
+    /** Implements the library.cancelRequest() Lua function. */
+    private class CancelRequestWrapper implements NamedJavaFunction {
+        @Override
+        public String getName() {
+            return "cancelRequest";
+        }
+
+        @Override
+        public int invoke(LuaState L) {
+            return cancelRequest(L);
+        }
+    }
+
+    /** Implements the library.getStats() Lua function. */
+    private class GetStatsWrapper implements NamedJavaFunction {
+        @Override
+        public String getName() {
+            return "getStats";
+        }
+
+        @Override
+        public int invoke(LuaState L) {
+            return getStats(L);
+        }
+    }
+
+    /** Implements the library.stopListeningForCommunicationResponses() Lua function. */
+    private class StopListeningForCommunicationResponsesWrapper implements NamedJavaFunction {
+        @Override
+        public String getName() {
+            return "stopListeningForCommunicationResponses";
+        }
+
+        @Override
+        public int invoke(LuaState L) {
+            return stopListeningForCommunicationResponses(L);
+        }
+    }
+
+    /** Implements the library.getCachedAgeRange() Lua function. */
+    private class GetCachedAgeRangeWrapper implements NamedJavaFunction {
+        @Override
+        public String getName() {
+            return "getCachedAgeRange";
+        }
+
+        @Override
+        public int invoke(LuaState L) {
+            return getCachedAgeRange(L);
+        }
+    }
+
+    /** Implements the library.canUse() Lua function. */
+    private class CanUseWrapper implements NamedJavaFunction {
+        @Override
+        public String getName() {
+            return "canUse";
+        }
+
+        @Override
+        public int invoke(LuaState L) {
+            return canUse(L);
+        }
+    }
+
+    /** Implements the library.canUseMany() Lua function. */
+    private class CanUseManyWrapper implements NamedJavaFunction {
+        @Override
+        public String getName() {
+            return "canUseMany";
+        }
+
+        @Override
+        public int invoke(LuaState L) {
+            return canUseMany(L);
+        }
+    }
+
+    /** Implements the library.requestCommunicationPermissions() Lua function. */
+    private class RequestCommunicationPermissionsWrapper implements NamedJavaFunction {
+        @Override
+        public String getName() {
+            return "requestCommunicationPermissions";
+        }
+
+        @Override
+        public int invoke(LuaState L) {
+            return requestCommunicationPermissions(L);
+        }
+    }
 }
\ No newline at end of file
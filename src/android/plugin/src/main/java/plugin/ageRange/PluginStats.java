@@ -0,0 +1,146 @@
+//
+//  PluginStats.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import com.naef.jnlua.LuaState;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Low-overhead counters and latency histograms for the plugin's request and dispatch paths.
+ * All recording methods are thread-safe and lock-free.
+ */
+final class PluginStats {
+    /** Counters for one Lua API, or for the backend lookup itself. */
+    static final class ApiStats {
+        private final AtomicLong fCalls = new AtomicLong();
+        private final AtomicLong fSuccesses = new AtomicLong();
+        private final AtomicLong fErrors = new AtomicLong();
+
+        /** Time from the call until its event reaches the Lua listener. */
+        private final LatencyHistogram fLatency = new LatencyHistogram();
+
+        /** Time an event spends queued for the Corona runtime before the listener is called. */
+        private final LatencyHistogram fTimeToDispatch = new LatencyHistogram();
+
+        void recordCall() {
+            fCalls.incrementAndGet();
+        }
+
+        /**
+         * Records a finished operation that was not dispatched through the event queue.
+         */
+        void recordCompleted(boolean isError, long latencyNanos) {
+            (isError ? fErrors : fSuccesses).incrementAndGet();
+            fLatency.record(latencyNanos);
+        }
+
+        /**
+         * Records an event being handed to the Lua listener.
+         */
+        void recordDelivered(boolean isError, long startNanos, long postedNanos, long nowNanos) {
+            (isError ? fErrors : fSuccesses).incrementAndGet();
+            fLatency.record(nowNanos - startNanos);
+            fTimeToDispatch.record(nowNanos - postedNanos);
+        }
+
+        void push(LuaState L) {
+            L.newTable(0, 5);
+            L.pushNumber(fCalls.get());
+            L.setField(-2, "calls");
+            L.pushNumber(fSuccesses.get());
+            L.setField(-2, "successes");
+            L.pushNumber(fErrors.get());
+            L.setField(-2, "errors");
+            fLatency.push(L);
+            L.setField(-2, "latencyMs");
+            fTimeToDispatch.push(L);
+            L.setField(-2, "timeToDispatchMs");
+        }
+    }
+
+    final ApiStats requestAgeRange = new ApiStats();
+    final ApiStats requestSignificantUpdatePermission = new ApiStats();
+    final ApiStats requestCommunicationPermission = new ApiStats();
+    final ApiStats requestCommunicationPermissions = new ApiStats();
+    final ApiStats startListeningForCommunicationResponses = new ApiStats();
+
+    /** The Play Services check or content provider query behind the request APIs. */
+    final ApiStats backend = new ApiStats();
+
+    final AtomicLong cacheHits = new AtomicLong();
+    final AtomicLong cacheMisses = new AtomicLong();
+
+    /** Lookups that joined one already in flight instead of starting their own. */
+    final AtomicLong coalesced = new AtomicLong();
+
+    /** Backend calls repeated after a transient error. */
+    final AtomicLong retries = new AtomicLong();
+
+    /** Unchanged ageRangeEvents dropped in delta mode. */
+    final AtomicLong unchangedSuppressed = new AtomicLong();
+
+    /** Requests answered with a saved or last-known-good result flagged isStale. */
+    final AtomicLong staleServed = new AtomicLong();
+
+    /** Communication permission checks answered from the handle decision cache. */
+    final AtomicLong handleCacheHits = new AtomicLong();
+
+    /**
+     * Pushes a snapshot of every counter onto the Lua stack as a table.
+     */
+    void push(LuaState L, EventDispatcher dispatcher) {
+        L.newTable(0, 12);
+
+        requestAgeRange.push(L);
+        L.setField(-2, "requestAgeRange");
+        requestSignificantUpdatePermission.push(L);
+        L.setField(-2, "requestSignificantUpdatePermission");
+        requestCommunicationPermission.push(L);
+        L.setField(-2, "requestCommunicationPermission");
+        requestCommunicationPermissions.push(L);
+        L.setField(-2, "requestCommunicationPermissions");
+        startListeningForCommunicationResponses.push(L);
+        L.setField(-2, "startListeningForCommunicationResponses");
+        backend.push(L);
+        L.setField(-2, "backend");
+
+        long hits = cacheHits.get();
+        long misses = cacheMisses.get();
+        L.newTable(0, 5);
+        L.pushNumber(hits);
+        L.setField(-2, "hits");
+        L.pushNumber(misses);
+        L.setField(-2, "misses");
+        L.pushNumber(hits + misses > 0 ? (double) hits / (hits + misses) : 0);
+        L.setField(-2, "hitRatio");
+        L.pushNumber(coalesced.get());
+        L.setField(-2, "coalesced");
+        L.pushNumber(retries.get());
+        L.setField(-2, "retries");
+        L.setField(-2, "cache");
+
+        L.newTable(0, 5);
+        L.pushNumber(dispatcher.getQueueDepth());
+        L.setField(-2, "queueDepth");
+        L.pushNumber(dispatcher.getMaxQueueDepth());
+        L.setField(-2, "maxQueueDepth");
+        L.pushNumber(dispatcher.getPostedCount());
+        L.setField(-2, "posted");
+        L.pushNumber(dispatcher.getDispatchedCount());
+        L.setField(-2, "dispatched");
+        L.pushNumber(dispatcher.getBatchCount());
+        L.setField(-2, "batches");
+        L.setField(-2, "dispatcher");
+
+        L.pushNumber(unchangedSuppressed.get());
+        L.setField(-2, "unchangedSuppressed");
+        L.pushNumber(staleServed.get());
+        L.setField(-2, "staleServed");
+        L.pushNumber(handleCacheHits.get());
+        L.setField(-2, "handleCacheHits");
+    }
+}
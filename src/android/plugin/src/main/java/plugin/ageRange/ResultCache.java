@@ -0,0 +1,72 @@
+//
+//  ResultCache.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import android.os.SystemClock;
+
+/**
+ * Process-wide cache holding the most recent successful age lookup result.
+ * <p>
+ * Entries expire after a configurable time-to-live. A TTL of zero disables caching.
+ * All methods are thread-safe.
+ */
+final class ResultCache<T> {
+    /** Default time-to-live for cached results, in milliseconds. */
+    static final long DEFAULT_TTL_MS = 60 * 1000;
+
+    private T fValue;
+    private long fStoredAt;
+    private long fTtlMs = DEFAULT_TTL_MS;
+
+    /**
+     * Returns the cached result, or null if there is none or it has expired.
+     */
+    synchronized T get() {
+        if (fValue == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - fStoredAt >= fTtlMs) {
+            fValue = null;
+            return null;
+        }
+        return fValue;
+    }
+
+    /**
+     * Stores a new result, replacing any previous one.
+     */
+    synchronized void put(T value) {
+        if (fTtlMs <= 0) {
+            return;
+        }
+        fValue = value;
+        fStoredAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Drops the cached result so the next lookup goes to the backend.
+     */
+    synchronized void invalidate() {
+        fValue = null;
+    }
+
+    /**
+     * Returns the time-to-live for cached results.
+     */
+    synchronized long getTtl() {
+        return fTtlMs;
+    }
+
+    /**
+     * Sets the time-to-live for cached results. Zero or less disables caching.
+     */
+    synchronized void setTtl(long ttlMs) {
+        fTtlMs = ttlMs;
+        if (ttlMs <= 0) {
+            fValue = null;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+//
+//  RetryPolicy.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter for retrying transient failures.
+ */
+final class RetryPolicy {
+    private final int fMaxRetries;
+    private final long fBaseDelayMs;
+    private final long fMaxDelayMs;
+
+    RetryPolicy(int maxRetries, long baseDelayMs, long maxDelayMs) {
+        fMaxRetries = maxRetries;
+        fBaseDelayMs = baseDelayMs;
+        fMaxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Returns true if a request that has already been retried this many times may be retried again.
+     */
+    boolean shouldRetry(int retries) {
+        return retries < fMaxRetries;
+    }
+
+    /**
+     * Returns how long to wait before the given retry, chosen at random up to an exponentially growing cap.
+     */
+    long getDelayMs(int retries) {
+        long cap = Math.min(fMaxDelayMs, fBaseDelayMs << Math.min(retries, 20));
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    /**
+     * Returns a copy of this policy with a different retry limit.
+     */
+    RetryPolicy withMaxRetries(int maxRetries) {
+        return new RetryPolicy(maxRetries, fBaseDelayMs, fMaxDelayMs);
+    }
+}
@@ -0,0 +1,63 @@
+//
+//  SingleFlight.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Coalesces concurrent lookups so only one backend request is in flight at a time.
+ * <p>
+ * The first caller to {@link #join(Callback)} becomes the leader and must start the lookup.
+ * Callers that join while it is running are queued, and every one of them receives the
+ * result passed to {@link #complete(Object, Exception)}. All methods are thread-safe.
+ */
+final class SingleFlight<T> {
+    /** Receives the outcome of a coalesced lookup. Exactly one of result or error is meaningful. */
+    interface Callback<T> {
+        void onComplete(T result, Exception error);
+    }
+
+    private List<Callback<T>> fWaiters;
+
+    /**
+     * Registers a caller for the current lookup.
+     * Returns true if no lookup was in flight and the caller must start one.
+     */
+    synchronized boolean join(Callback<T> callback) {
+        if (fWaiters != null) {
+            fWaiters.add(callback);
+            return false;
+        }
+        fWaiters = new ArrayList<>();
+        fWaiters.add(callback);
+        return true;
+    }
+
+    /**
+     * Returns true while a lookup is in flight.
+     */
+    synchronized boolean isInFlight() {
+        return fWaiters != null;
+    }
+
+    /**
+     * Ends the current lookup and fans its outcome out to every caller that joined it.
+     */
+    void complete(T result, Exception error) {
+        List<Callback<T>> waiters;
+        synchronized (this) {
+            waiters = fWaiters;
+            fWaiters = null;
+        }
+        if (waiters == null) {
+            return;
+        }
+        for (Callback<T> callback : waiters) {
+            callback.onComplete(result, error);
+        }
+    }
+}
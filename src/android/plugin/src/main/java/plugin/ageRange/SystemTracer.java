@@ -0,0 +1,39 @@
+//
+//  SystemTracer.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Emits trace sections through android.os.Trace so they show up in Perfetto and systrace.
+ * Asynchronous sections need API level 29 and are skipped on older devices.
+ */
+final class SystemTracer implements Tracer {
+    @Override
+    public void beginSection(String name) {
+        Trace.beginSection(name);
+    }
+
+    @Override
+    public void endSection() {
+        Trace.endSection();
+    }
+
+    @Override
+    public void beginAsyncSection(String name, int cookie) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(name, cookie);
+        }
+    }
+
+    @Override
+    public void endAsyncSection(String name, int cookie) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(name, cookie);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+//
+//  UpdateEvent.java
+//  AgeRange
+//
+
+package plugin.ageRange;
+
+import com.naef.jnlua.LuaState;
+
+/**
+ * The significantUpdateEvent sent in response to requestSignificantUpdatePermission().
+ */
+final class UpdateEvent extends LuaEvent {
+    String description;
+    String platform;
+    String store;
+    String message;
+    Boolean approved;
+    Boolean pending;
+    Boolean denied;
+    /** Approval date in milliseconds since the epoch. */
+    long mostRecentApprovalDate = NONE_LONG;
+    int errorCode = NONE;
+    String errorMessage;
+
+    @Override
+    String getName() {
+        return LuaLoader.UPDATE_EVENT;
+    }
+
+    @Override
+    int getFieldCount() {
+        return 11;
+    }
+
+    @Override
+    void pushFields(LuaState L) {
+        setField(L, "isError", isError);
+        setField(L, "description", description);
+        setField(L, "platform", platform);
+        setField(L, "store", store);
+        setField(L, "message", message);
+        setField(L, "approved", approved);
+        setField(L, "pending", pending);
+        setField(L, "denied", denied);
+        setNumberField(L, "mostRecentApprovalDate", mostRecentApprovalDate);
+        setIntegerField(L, "errorCode", errorCode);
+        setField(L, "errorMessage", errorMessage);
+    }
+}